@@ -0,0 +1,22 @@
+package com.hmdp.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * 标注在写方法上，在写操作所在的事务中记录缓存失效事件，
+ * 事务提交后由发件箱中继删除缓存并延迟双删
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpCacheEvict {
+    /**
+     * 缓存key前缀，完整的key为 前缀 + id
+     */
+    String keyPrefix();
+
+    /**
+     * id的SpEL表达式，例如 #shop.id，为空时取方法的第一个参数
+     */
+    String key() default "";
+}
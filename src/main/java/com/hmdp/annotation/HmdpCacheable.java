@@ -0,0 +1,35 @@
+package com.hmdp.annotation;
+
+import java.lang.annotation.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 标注在按id查询单个对象的方法上，由 HmdpCacheAspect 织入缓存逻辑，
+ * 被标注方法本身作为查询数据库的兜底逻辑，返回值类型即缓存的对象类型
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpCacheable {
+    /**
+     * 缓存key前缀，完整的key为 前缀 + id
+     */
+    String keyPrefix();
+
+    /**
+     * id的SpEL表达式，例如 #shop.id，为空时取方法的第一个参数
+     */
+    String key() default "";
+
+    /**
+     * 缓存策略
+     */
+    CacheStrategy strategy() default CacheStrategy.PASS_THROUGH;
+
+    /**
+     * 缓存有效期，逻辑过期策略下为逻辑过期时间
+     */
+    long ttl() default 30L;
+
+    TimeUnit timeUnit() default TimeUnit.MINUTES;
+}
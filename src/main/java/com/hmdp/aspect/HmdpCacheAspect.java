@@ -0,0 +1,178 @@
+package com.hmdp.aspect;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.annotation.CacheStrategy;
+import com.hmdp.annotation.HmdpCacheEvict;
+import com.hmdp.annotation.HmdpCacheable;
+import com.hmdp.service.ICacheOutboxService;
+import com.hmdp.utils.CacheClient;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 缓存注解的切面实现。
+ * 注解、返回值类型、参数名和SpEL表达式只在方法第一次调用时解析并缓存，
+ * 表达式以IMMEDIATE模式编译为字节码，之后的调用不再有反射开销
+ */
+@Aspect
+@Component
+public class HmdpCacheAspect {
+
+    private static final SpelExpressionParser PARSER = new SpelExpressionParser(
+            new SpelParserConfiguration(SpelCompilerMode.IMMEDIATE, HmdpCacheAspect.class.getClassLoader()));
+
+    private static final ParameterNameDiscoverer NAME_DISCOVERER = new DefaultParameterNameDiscoverer();
+
+    private final Map<Method, CacheableOperation> cacheableOperations = new ConcurrentHashMap<>();
+
+    private final Map<Method, KeyResolver> evictOperations = new ConcurrentHashMap<>();
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Around("@annotation(com.hmdp.annotation.HmdpCacheable)")
+    public Object cacheable(ProceedingJoinPoint pjp) throws Throwable {
+        //1. 获取方法元数据，只有第一次调用时解析
+        Method method = ((MethodSignature) pjp.getSignature()).getMethod();
+        CacheableOperation op = cacheableOperations.computeIfAbsent(method,
+                m -> CacheableOperation.of(m, pjp.getTarget().getClass()));
+        //2. 解析id，id为空时直接走原方法
+        Object id = op.keyResolver.resolve(pjp.getArgs());
+        if (id == null) {
+            return pjp.proceed();
+        }
+        //3. 被标注的方法就是查询数据库的兜底逻辑
+        Function<Object, Object> dbFallback = ignored -> {
+            try {
+                return pjp.proceed();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        };
+        //4. 根据策略查询缓存
+        switch (op.strategy) {
+            case MUTEX:
+                return cacheClient.queryWithMutex(op.keyPrefix, id, op.returnType, dbFallback, op.ttl, op.timeUnit);
+            case LOGICAL_EXPIRE:
+                return cacheClient.queryWithLogicalExpire(op.keyPrefix, id, op.returnType, dbFallback, op.ttl, op.timeUnit);
+            default:
+                return cacheClient.queryWithPassThrough(op.keyPrefix, id, op.returnType, dbFallback, op.ttl, op.timeUnit);
+        }
+    }
+
+    @Around("@annotation(com.hmdp.annotation.HmdpCacheEvict)")
+    public Object cacheEvict(ProceedingJoinPoint pjp) throws Throwable {
+        Method method = ((MethodSignature) pjp.getSignature()).getMethod();
+        KeyResolver resolver = evictOperations.computeIfAbsent(method, m -> {
+            Method specific = AopUtils.getMostSpecificMethod(m, pjp.getTarget().getClass());
+            HmdpCacheEvict evict = AnnotatedElementUtils.findMergedAnnotation(specific, HmdpCacheEvict.class);
+            return KeyResolver.of(specific, evict.keyPrefix(), evict.key());
+        });
+        //写操作和失效事件在同一个事务中提交，方法上已有事务时直接加入该事务
+        return transactionTemplate.execute(status -> {
+            //1. 先执行写操作，抛出异常时事务回滚，不会记录失效事件
+            Object result;
+            try {
+                result = pjp.proceed();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new UndeclaredThrowableException(e);
+            }
+            //2. 再记录失效事件，由发件箱中继在事务提交后删除缓存
+            Object id = resolver.resolve(pjp.getArgs());
+            if (id != null) {
+                cacheOutboxService.record(resolver.keyPrefix + id);
+            }
+            return result;
+        });
+    }
+
+    private static class CacheableOperation {
+        private KeyResolver keyResolver;
+        private String keyPrefix;
+        private CacheStrategy strategy;
+        private Type returnType;
+        private Long ttl;
+        private TimeUnit timeUnit;
+
+        static CacheableOperation of(Method method, Class<?> targetClass) {
+            Method specific = AopUtils.getMostSpecificMethod(method, targetClass);
+            HmdpCacheable cacheable = AnnotatedElementUtils.findMergedAnnotation(specific, HmdpCacheable.class);
+            CacheableOperation op = new CacheableOperation();
+            op.keyResolver = KeyResolver.of(specific, cacheable.keyPrefix(), cacheable.key());
+            op.keyPrefix = cacheable.keyPrefix();
+            op.strategy = cacheable.strategy();
+            op.returnType = specific.getGenericReturnType();
+            op.ttl = cacheable.ttl();
+            op.timeUnit = cacheable.timeUnit();
+            return op;
+        }
+    }
+
+    private static class KeyResolver {
+        private String keyPrefix;
+        private Expression expression;
+        private String[] variableNames;
+
+        static KeyResolver of(Method method, String keyPrefix, String key) {
+            KeyResolver resolver = new KeyResolver();
+            resolver.keyPrefix = keyPrefix;
+            if (StrUtil.isNotBlank(key)) {
+                resolver.expression = PARSER.parseExpression(key);
+                //参数既可以用 #p0 引用，也可以用参数名引用
+                String[] paramNames = NAME_DISCOVERER.getParameterNames(method);
+                int count = method.getParameterCount();
+                resolver.variableNames = new String[count * 2];
+                for (int i = 0; i < count; i++) {
+                    resolver.variableNames[i * 2] = "p" + i;
+                    resolver.variableNames[i * 2 + 1] = paramNames == null ? "p" + i : paramNames[i];
+                }
+            }
+            return resolver;
+        }
+
+        Object resolve(Object[] args) {
+            //没有表达式，取第一个参数作为id
+            if (expression == null) {
+                return args.length > 0 ? args[0] : null;
+            }
+            StandardEvaluationContext context = new StandardEvaluationContext();
+            for (int i = 0; i < args.length; i++) {
+                context.setVariable(variableNames[i * 2], args[i]);
+                context.setVariable(variableNames[i * 2 + 1], args[i]);
+            }
+            return expression.getValue(context);
+        }
+    }
+}
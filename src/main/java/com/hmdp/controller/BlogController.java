@@ -63,11 +63,21 @@ public class BlogController {
         return Result.ok(records);
     }
 
+    @GetMapping("/of/me/scroll")
+    public Result scrollMyBlog(@RequestParam(value = "cursor", required = false) String cursor) {
+        return blogService.scrollBlogOfUser(UserHolder.getUser().getId(), cursor);
+    }
+
     @GetMapping("/hot")
     public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
         return blogService.queryHotBlog(current);
     }
 
+    @GetMapping("/hot/scroll")
+    public Result scrollHotBlog(@RequestParam(value = "cursor", required = false) String cursor) {
+        return blogService.scrollHotBlog(cursor);
+    }
+
     @GetMapping("/{id}")
     public Result queryById(@PathVariable Integer id) {
         return blogService.queryById(id);
@@ -88,6 +98,11 @@ public class BlogController {
         return Result.ok(records);
     }
 
+    @GetMapping("/of/user/scroll")
+    public Result scrollBlogByUserId(@RequestParam(value = "cursor", required = false) String cursor, @RequestParam("id") Long id) {
+        return blogService.scrollBlogOfUser(id, cursor);
+    }
+
     @GetMapping("/of/follow")
     public Result queryBlogOfFollow(@RequestParam("lastId") Long max, @RequestParam(value = "offset",defaultValue = "0") Integer offset) {
         return blogService.queryBlogOfFollow(max,offset);
@@ -0,0 +1,40 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * 健康检查
+ * </p>
+ */
+@RestController
+@RequestMapping("/health")
+public class HealthController {
+
+    @Resource
+    private ApplicationAvailability applicationAvailability;
+
+    /**
+     * 就绪检查，缓存预热完成前返回503
+     *
+     * @return 就绪状态
+     */
+    @GetMapping("/readiness")
+    public Result readiness(HttpServletResponse response) {
+        ReadinessState state = applicationAvailability.getReadinessState();
+        if (state != ReadinessState.ACCEPTING_TRAFFIC) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return Result.fail(state.name());
+        }
+        return Result.ok(state.name());
+    }
+}
@@ -1,16 +1,16 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ETagUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
 
@@ -41,8 +41,33 @@ public class ShopController {
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public Result queryShopById(@PathVariable("id") Long id, WebRequest webRequest) {
+        //1. 缓存中的版本号与客户端的ETag一致时直接返回304，不查询也不序列化商铺
+        String eTag = shopService.queryShopETag(id);
+        if (eTag != null && webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        //2. 查询商铺
+        Result result = shopService.queryById(id);
+        //3. 缓存未命中时，按查到的商铺的版本号生成ETag，与缓存中的版本号取法相同
+        if (eTag == null && result.getData() instanceof Shop) {
+            long version = CacheClient.versionOf(result.getData());
+            if (version > 0 && webRequest.checkNotModified(ETagUtil.weak(version))) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 商铺详情页聚合查询，并行查询商铺信息、优惠券和热门笔记
+     *
+     * @param id 商铺id
+     * @return 商铺详情、优惠券和热门笔记，超时的部分为空
+     */
+    @GetMapping("/{id}/detail")
+    public Result queryShopDetail(@PathVariable("id") Long id) {
+        return shopService.queryShopDetail(id);
     }
 
     /**
@@ -53,10 +78,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -87,6 +109,40 @@ public class ShopController {
        return shopService.queryShopByType(typeId,current,x,y);
     }
 
+    /**
+     * 根据商铺类型滚动查询商铺信息，传入坐标时按距离排序，否则按id排序
+     *
+     * @param typeId 商铺类型
+     * @param cursor 上一次查询返回的游标，第一页不传
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/type/scroll")
+    public Result scrollShopByType(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        return shopService.scrollShopByType(typeId, x, y, cursor);
+    }
+
+    /**
+     * 查询商铺类型下的排行榜
+     *
+     * @param typeId  商铺类型
+     * @param metric  排行榜指标：score、sold、comments
+     * @param current 页码
+     * @return 商铺列表
+     */
+    @GetMapping("/of/type/rank")
+    public Result queryShopRank(
+            @RequestParam("typeId") Long typeId,
+            @RequestParam(value = "metric", defaultValue = "score") String metric,
+            @RequestParam(value = "current", defaultValue = "1") Integer current
+    ) {
+        return shopService.queryShopRank(typeId, metric, current);
+    }
+
     /**
      * 根据商铺名称关键字分页查询商铺信息
      *
@@ -99,11 +155,6 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current);
     }
 }
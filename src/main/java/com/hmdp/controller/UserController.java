@@ -4,6 +4,7 @@ package com.hmdp.controller;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -15,6 +16,7 @@ import com.hmdp.service.IUserService;
 import com.hmdp.utils.MailUtils;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserProfileCache;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -51,6 +53,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private UserProfileCache userProfileCache;
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
@@ -158,6 +163,25 @@ public class UserController {
         return Result.ok(user);
     }
 
+    @PutMapping("/me")
+    public Result updateMe(@RequestBody UserDTO profile, @RequestHeader("authorization") String token) {
+        //只能修改自己的资料
+        UserDTO user = UserHolder.getUser();
+        profile.setId(user.getId());
+        Result result = userService.updateProfile(profile);
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            //同步修改登录令牌中的用户信息
+            String tokenKey = LOGIN_USER_KEY + token;
+            if (StrUtil.isNotBlank(profile.getNickName())) {
+                stringRedisTemplate.opsForHash().put(tokenKey, "nickName", profile.getNickName());
+            }
+            if (StrUtil.isNotBlank(profile.getIcon())) {
+                stringRedisTemplate.opsForHash().put(tokenKey, "icon", profile.getIcon());
+            }
+        }
+        return result;
+    }
+
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId) {
         // 查询详情
@@ -174,13 +198,12 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryById(@PathVariable("id") Long userId) {
-        // 查询详情
-        User user = userService.getById(userId);
-        if (user == null) {
+        // 查询用户资料缓存
+        UserDTO userDTO = userProfileCache.get(userId);
+        if (userDTO == null) {
             // 没有详情，应该是第一次查看详情
             return Result.ok();
         }
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         // 返回
         return Result.ok(userDTO);
     }
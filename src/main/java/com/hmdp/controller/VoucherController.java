@@ -4,9 +4,19 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ETagUtil;
+import com.hmdp.utils.SeckillStockBroadcaster;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * <p>
@@ -23,6 +33,9 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private SeckillStockBroadcaster seckillStockBroadcaster;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -30,7 +43,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -51,7 +64,32 @@ public class VoucherController {
      * @return 优惠券列表
      */
     @GetMapping("/list/{shopId}")
-    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
-       return voucherService.queryVoucherOfShop(shopId);
+    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId, WebRequest webRequest) {
+        List<Voucher> vouchers = voucherService.listVoucherOfShop(shopId);
+        //列表版本号、优惠券和实时库存都没变时返回304，省去序列化和传输
+        int stockHash = 1;
+        for (Voucher voucher : vouchers) {
+            stockHash = 31 * stockHash + Objects.hash(voucher.getId(), voucher.getStock());
+        }
+        String eTag = ETagUtil.weak(CacheClient.versionOf(vouchers) + "-" + Integer.toHexString(stockHash));
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        return Result.ok(vouchers);
+    }
+
+    /**
+     * 订阅秒杀券的实时库存，库存变化时推送
+     * @param id 优惠券id
+     * @return 库存事件流
+     */
+    @GetMapping(value = "/stock/{id}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamSeckillStock(@PathVariable("id") Long id) {
+        SseEmitter emitter = seckillStockBroadcaster.subscribe(id);
+        if (emitter == null) {
+            //本节点的订阅数已满，客户端稍后重试或由负载均衡转到其它节点
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(emitter);
     }
 }
@@ -23,7 +23,7 @@ import java.time.LocalDateTime;
 @EqualsAndHashCode(callSuper = false)
 @Accessors(chain = true)
 @TableName("tb_shop")
-public class Shop implements Serializable {
+public class Shop implements Serializable, Versioned {
 
     private static final long serialVersionUID = 1L;
 
@@ -103,6 +103,11 @@ public class Shop implements Serializable {
      */
     private LocalDateTime updateTime;
 
+    /**
+     * 缓存版本号，每次修改时递增
+     */
+    private Long version;
+
 
     @TableField(exist = false)
     private Double distance;
@@ -23,7 +23,7 @@ import java.time.LocalDateTime;
 @EqualsAndHashCode(callSuper = false)
 @Accessors(chain = true)
 @TableName("tb_shop_type")
-public class ShopType implements Serializable {
+public class ShopType implements Serializable, Versioned {
 
     private static final long serialVersionUID = 1L;
 
@@ -22,7 +22,7 @@ import java.time.LocalDateTime;
 @EqualsAndHashCode(callSuper = false)
 @Accessors(chain = true)
 @TableName("tb_user")
-public class User implements Serializable {
+public class User implements Serializable, Versioned {
 
     private static final long serialVersionUID = 1L;
 
@@ -0,0 +1,20 @@
+package com.hmdp.entity;
+
+import java.time.LocalDateTime;
+
+/**
+ * 带更新时间的实体，写入缓存时以更新时间作为版本号，
+ * 版本号更旧的数据不会覆盖缓存中更新的数据
+ */
+public interface Versioned {
+
+    LocalDateTime getUpdateTime();
+
+    /**
+     * 单调递增的版本号，大于0时优先于更新时间使用。
+     * update_time只精确到秒，且可能被客户端提交的值覆盖，频繁修改的实体需要维护该字段
+     */
+    default Long getVersion() {
+        return null;
+    }
+}
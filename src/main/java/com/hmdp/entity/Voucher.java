@@ -23,7 +23,7 @@ import java.time.LocalDateTime;
 @EqualsAndHashCode(callSuper = false)
 @Accessors(chain = true)
 @TableName("tb_voucher")
-public class Voucher implements Serializable {
+public class Voucher implements Serializable, Versioned {
 
     private static final long serialVersionUID = 1L;
 
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,6 +18,14 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryHotBlog(Integer current);
 
+    Result scrollHotBlog(String cursor);
+
+    Result scrollBlogOfUser(Long userId, String cursor);
+
+    List<Blog> queryHotBlogOfShop(Long shopId, int limit);
+
+    Blog queryBlogById(Long id);
+
     Result queryById(Integer id);
 
     Result likeBlog(Long id);
@@ -25,4 +35,6 @@ public interface IBlogService extends IService<Blog> {
     Result saveBlog(Blog blog);
 
     Result queryBlogOfFollow(Long max, Integer offset);
+
+    void rebuildHotBlog();
 }
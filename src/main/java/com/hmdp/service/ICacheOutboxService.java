@@ -0,0 +1,24 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.CacheOutbox;
+
+/**
+ * <p>
+ *  缓存失效发件箱服务类
+ * </p>
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    /**
+     * 在当前事务中记录缓存失效事件，事务提交后异步删除缓存
+     *
+     * @param cacheKey 需要删除的缓存key
+     */
+    void record(String cacheKey);
+
+    /**
+     * 批量处理到期的失效事件
+     */
+    void relay();
+}
@@ -0,0 +1,25 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.FeedOutbox;
+
+/**
+ * <p>
+ *  笔记推送发件箱服务类
+ * </p>
+ */
+public interface IFeedOutboxService extends IService<FeedOutbox> {
+
+    /**
+     * 在当前事务中记录笔记推送事件，事务提交后再写入推送消息
+     *
+     * @param blogId   发布的笔记id
+     * @param authorId 作者id
+     */
+    void record(Long blogId, Long authorId);
+
+    /**
+     * 批量处理到期的推送事件
+     */
+    void relay();
+}
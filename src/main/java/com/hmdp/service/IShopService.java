@@ -15,13 +15,25 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
-    Shop queryWithPassThrough(Long id);
+    Shop queryShopById(Long id);
 
-    Shop queryWithMutex(Long id);
+    String queryShopETag(Long id);
 
-    Shop queryWithLogicalExpire(Long id);
+    Result queryShopDetail(Long id);
 
     Result update(Shop shop);
 
+    Result saveShop(Shop shop);
+
+    void rebuildShopGeo();
+
+    void rebuildShopRank();
+
+    Result queryShopRank(Long typeId, String metric, Integer current);
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryShopByName(String name, Integer current);
+
+    Result scrollShopByType(Integer typeId, Double x, Double y, String cursor);
 }
@@ -15,4 +15,14 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryList();
+
+    /**
+     * 提前序列化好的商铺类型列表响应体
+     */
+    byte[] queryListBody();
+
+    /**
+     * 商铺类型列表的ETag，与响应体一一对应
+     */
+    String queryListETag();
 }
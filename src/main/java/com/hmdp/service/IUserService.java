@@ -2,6 +2,7 @@ package com.hmdp.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 /**
@@ -17,4 +18,6 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    Result updateProfile(UserDTO profile);
 }
@@ -1,37 +1,69 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.annotation.HmdpCacheable;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
 import com.hmdp.entity.ScrollResult;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
+import com.hmdp.service.IFeedOutboxService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
-import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CursorUtil;
+import com.hmdp.utils.FeedFanout;
+import com.hmdp.utils.FeedMergeUtil;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserProfileCache;
 import io.netty.util.internal.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.framework.AopContext;
+import org.springframework.core.io.ClassPathResource;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_COUNT_KEY;
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
+import static com.hmdp.utils.RedisConstants.FEED_BIG_AUTHOR_KEY;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOG_HOT_REBUILD_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOG_LIKE_FLUSH_KEY;
 
 /**
  * <p>
@@ -41,83 +73,362 @@ import static com.hmdp.utils.RedisConstants.FEED_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
+
+    /**
+     * 关注流每页的笔记数量
+     */
+    private static final int FEED_PAGE_SIZE = 2;
+
+    /**
+     * 关注流偏移量的上限，每个数据源要多读取offset条
+     */
+    private static final int FEED_MAX_OFFSET = 100;
+
+    /**
+     * 重建热门笔记排行榜时每批读取的笔记数量
+     */
+    private static final int HOT_REBUILD_BATCH_SIZE = 500;
+
+    private static final String REBUILD_SUFFIX = ":rebuild";
+
+    private static final DefaultRedisScript<Long> LIKE_DELTA_ACK_SCRIPT;
+
+    private static final DefaultRedisScript<Long> HOT_SYNC_SCRIPT;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> LIKE_SCRIPT;
+
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(List.class);
+        LIKE_DELTA_ACK_SCRIPT = new DefaultRedisScript<>();
+        LIKE_DELTA_ACK_SCRIPT.setLocation(new ClassPathResource("like_delta_ack.lua"));
+        LIKE_DELTA_ACK_SCRIPT.setResultType(Long.class);
+        HOT_SYNC_SCRIPT = new DefaultRedisScript<>();
+        HOT_SYNC_SCRIPT.setLocation(new ClassPathResource("hot_sync.lua"));
+        HOT_SYNC_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private UserProfileCache userProfileCache;
+
+    @Resource
+    private FeedFanout feedFanout;
+
     @Resource
-    private IUserService userService;
+    private IFeedOutboxService feedOutboxService;
+
+    @Resource
+    private CacheClient cacheClient;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private IFollowService followService;
+    private RedissonClient redissonClient;
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        //1. 从排行榜中按页读取笔记id和点赞数，排行榜不存在时查询数据库
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(BLOG_HOT_KEY, start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (tuples == null || (tuples.isEmpty() && !Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY)))) {
+            Page<Blog> page = query()
+                    .orderByDesc("liked")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            List<Blog> records = page.getRecords();
+            hydrateBlogs(records);
+            return Result.ok(records);
+        }
+        //2. 笔记内容从缓存中批量查询，未命中的一次查库
+        List<Long> ids = new ArrayList<>(tuples.size());
+        Map<Long, Integer> likes = new HashMap<>(tuples.size());
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            Long id = Long.valueOf(tuple.getValue());
+            ids.add(id);
+            likes.put(id, tuple.getScore().intValue());
+        }
+        List<Blog> records = cacheClient.queryBatchWithPassThrough(CACHE_BLOG_KEY, ids, Blog.class,
+                this::listByIds, Blog::getId, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        //3. 点赞数以排行榜为准，再批量查询作者和当前用户是否点赞
+        records.forEach(blog -> blog.setLiked(likes.get(blog.getId())));
+        hydrateBlogs(records);
         return Result.ok(records);
     }
 
+    /**
+     * 全量重建热门笔记排行榜，按id分批读取，点赞数优先取Redis中的实时值，写入临时key后再RENAME替换。
+     * 分布式锁保证同一时间只有一个节点在重建；RENAME会覆盖扫描期间的点赞和新发布的笔记，替换后再按实时值补齐
+     */
+    @Override
+    @Scheduled(cron = "0 45 4 * * ?")
+    public void rebuildHotBlog() {
+        RLock lock = redissonClient.getLock(LOCK_BLOG_HOT_REBUILD_KEY);
+        if (!lock.tryLock()) {
+            log.info("其它节点正在重建热门笔记排行榜，跳过本次重建");
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            String tempKey = BLOG_HOT_KEY + REBUILD_SUFFIX;
+            stringRedisTemplate.delete(tempKey);
+            //1. 按id分批读取笔记写入临时key
+            long lastId = 0;
+            int count = 0;
+            while (true) {
+                List<Blog> batch = query()
+                        .select("id", "liked")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + HOT_REBUILD_BATCH_SIZE)
+                        .list();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                List<Object> fields = batch.stream().map(blog -> (Object) blog.getId().toString()).collect(Collectors.toList());
+                List<Object> liveLikes = stringRedisTemplate.opsForHash().multiGet(BLOG_LIKED_COUNT_KEY, fields);
+                Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    Blog blog = batch.get(i);
+                    Object live = liveLikes.get(i);
+                    double liked = live != null ? Double.parseDouble(live.toString())
+                            : blog.getLiked() == null ? 0 : blog.getLiked();
+                    tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), liked));
+                }
+                stringRedisTemplate.opsForZSet().add(tempKey, tuples);
+                count += batch.size();
+                lastId = batch.get(batch.size() - 1).getId();
+            }
+            if (count == 0) {
+                return;
+            }
+            //2. 覆盖正式key
+            stringRedisTemplate.rename(tempKey, BLOG_HOT_KEY);
+            //3. 扫描期间被点赞的笔记都在点赞数hash中，按实时值重新写入
+            int synced = 0;
+            List<String> args = new ArrayList<>();
+            ScanOptions options = ScanOptions.scanOptions().count(HOT_REBUILD_BATCH_SIZE).build();
+            try (Cursor<Map.Entry<Object, Object>> cursor = stringRedisTemplate.opsForHash().scan(BLOG_LIKED_COUNT_KEY, options)) {
+                while (cursor.hasNext()) {
+                    args.add(cursor.next().getKey().toString());
+                    args.add("0");
+                    if (args.size() >= HOT_REBUILD_BATCH_SIZE * 2) {
+                        synced += syncHotBlog(args);
+                        args.clear();
+                    }
+                }
+            }
+            //4. 扫描结束后发布的笔记不在临时key中，补充写入
+            List<Blog> newer = query().select("id", "liked").gt("id", lastId).list();
+            for (Blog blog : newer) {
+                args.add(blog.getId().toString());
+                args.add(String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked()));
+            }
+            synced += syncHotBlog(args);
+            log.info("热门笔记排行榜重建完成，笔记 {} 篇，补齐 {} 篇，耗时 {} ms", count, synced, System.currentTimeMillis() - begin);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 以实时点赞数写入排行榜，排行榜不存在时不写入
+     *
+     * @param args 依次为笔记id和数据库中的点赞数
+     */
+    private int syncHotBlog(List<String> args) {
+        if (args.isEmpty()) {
+            return 0;
+        }
+        Long synced = stringRedisTemplate.execute(HOT_SYNC_SCRIPT,
+                Arrays.asList(BLOG_HOT_KEY, BLOG_LIKED_COUNT_KEY), args.toArray());
+        return synced == null ? 0 : synced.intValue();
+    }
+
+    @Override
+    public Result scrollHotBlog(String cursor) {
+        //1. 解析游标，游标中是上一页最后一篇笔记的点赞数和id
+        Integer lastLiked = null;
+        Long lastId = null;
+        if (StrUtil.isNotBlank(cursor)) {
+            try {
+                String[] values = CursorUtil.decode(cursor, 2);
+                lastLiked = Integer.valueOf(values[0]);
+                lastId = Long.valueOf(values[1]);
+            } catch (IllegalArgumentException e) {
+                return Result.fail("游标无效！");
+            }
+        }
+        //2. 按(liked, id)索引从游标之后查询一页，(liked < ? OR (liked = ? AND id < ?))
+        Integer liked = lastLiked;
+        Long id = lastId;
+        List<Blog> records = query()
+                .and(lastLiked != null, w -> w.lt("liked", liked).or(o -> o.eq("liked", liked).lt("id", id)))
+                .orderByDesc("liked", "id")
+                .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+        //3. 查询用户和点赞状态
+        hydrateBlogs(records);
+        //4. 封装返回
+        CursorResult r = new CursorResult();
+        r.setList(records);
+        if (records.size() == SystemConstants.MAX_PAGE_SIZE) {
+            Blog last = records.get(records.size() - 1);
+            r.setCursor(CursorUtil.encode(last.getLiked(), last.getId()));
+        }
+        return Result.ok(r);
+    }
+
+    @Override
+    public Result scrollBlogOfUser(Long userId, String cursor) {
+        //1. 解析游标，游标中是上一页最后一篇笔记的id
+        Long lastId = null;
+        if (StrUtil.isNotBlank(cursor)) {
+            try {
+                lastId = Long.valueOf(CursorUtil.decode(cursor, 1)[0]);
+            } catch (IllegalArgumentException e) {
+                return Result.fail("游标无效！");
+            }
+        }
+        //2. 按(user_id, id)索引从新到旧查询一页
+        List<Blog> records = query()
+                .eq("user_id", userId)
+                .lt(lastId != null, "id", lastId)
+                .orderByDesc("id")
+                .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+        //3. 封装返回
+        CursorResult r = new CursorResult();
+        r.setList(records);
+        if (records.size() == SystemConstants.MAX_PAGE_SIZE) {
+            r.setCursor(CursorUtil.encode(records.get(records.size() - 1).getId()));
+        }
+        return Result.ok(r);
+    }
+
+    @Override
+    public List<Blog> queryHotBlogOfShop(Long shopId, int limit) {
+        List<Blog> records = query()
+                .eq("shop_id", shopId)
+                .orderByDesc("liked")
+                .last("LIMIT " + limit)
+                .list();
+        hydrateBlogs(records);
+        return records;
+    }
 
     @Override
     public Result queryById(Integer id) {
-        Blog blog = getById(id);
+        //1. 通过代理对象查询缓存中的笔记，点赞不会修改缓存
+        Blog blog = ((IBlogService) AopContext.currentProxy()).queryBlogById(id.longValue());
         if (blog == null) {
             return Result.fail("评价不存在或已被删除");
         }
+        //2. 作者信息从用户资料缓存中查询
         queryBlogUser(blog);
-        //追加判断blog是否被当前用户点赞，逻辑封装到isBlogLiked方法中
-        isBlogLiked(blog);
+        //3. 点赞数和当前用户是否点赞以Redis为准，覆盖缓存中的值
+        overlayLiked(blog);
         return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
-        //1. 获取当前用户信息
+    @Override
+    @HmdpCacheable(keyPrefix = CACHE_BLOG_KEY)
+    public Blog queryBlogById(Long id) {
+        return getById(id);
+    }
+
+    /**
+     * 一次管道查询实时点赞数和当前用户是否点赞。
+     * 点赞数hash中没有该笔记时说明还没有人通过Redis点过赞，数据库中的点赞数就是最新的
+     */
+    private void overlayLiked(Blog blog) {
         UserDTO userDTO = UserHolder.getUser();
-        //当用户未登录时，就不判断了，直接return结束逻辑
-        if (userDTO == null) {
-            return;
+        byte[] blogId = blog.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hGet(BLOG_LIKED_COUNT_KEY.getBytes(StandardCharsets.UTF_8), blogId);
+            if (userDTO != null) {
+                connection.zSetCommands().zScore((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8),
+                        userDTO.getId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        if (results.get(0) != null) {
+            blog.setLiked(Integer.valueOf(results.get(0).toString()));
+        }
+        if (userDTO != null) {
+            blog.setIsLike(results.get(1) != null);
         }
-        //2. 判断当前用户是否点赞
-        String key = BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userDTO.getId().toString());
-        blog.setIsLike(score != null);
     }
 
     @Override
     public Result likeBlog(Long id) {
         //1. 获取当前用户信息
         Long userId = UserHolder.getUser().getId();
-        //2. 如果当前用户未点赞，则点赞数 +1，同时将用户加入set集合
-        String key = BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if (score == null) {
-            //点赞数 +1
-            boolean success = update().setSql("liked = liked + 1").eq("id", id).update();
-            //将用户加入set集合
-            if (success) {
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+        //2. 点赞数hash中还没有该笔记时，读取数据库中的点赞数作为初始值，同时校验笔记存在
+        String dbLiked = "";
+        if (!stringRedisTemplate.opsForHash().hasKey(BLOG_LIKED_COUNT_KEY, id.toString())) {
+            Blog blog = query().select("id", "liked").eq("id", id).one();
+            if (blog == null) {
+                return Result.fail("笔记不存在！");
             }
-            //3. 如果当前用户已点赞，则取消点赞，将用户从set集合中移除
-        } else {
-            //点赞数 -1
-            boolean success = update().setSql("liked = liked - 1").eq("id", id).update();
-            if (success) {
-                //从set集合移除
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+            dbLiked = String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked());
+        }
+        //3. 执行lua脚本，一次往返原子地切换点赞状态、更新点赞数并记录待写入数据库的增量
+        @SuppressWarnings("unchecked")
+        List<Long> result = stringRedisTemplate.execute(LIKE_SCRIPT,
+                Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKED_COUNT_KEY, BLOG_LIKE_DELTA_KEY, BLOG_HOT_KEY),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString(), dbLiked);
+        //4. 返回点赞后的状态和点赞数，点赞数由定时任务按笔记合并后写入数据库
+        Map<String, Object> data = new HashMap<>(2);
+        data.put("isLike", result.get(0) == 1L);
+        data.put("liked", result.get(1));
+        return Result.ok(data);
+    }
+
+    /**
+     * 定时把点赞数的增量写入数据库，每篇笔记一条UPDATE，数据库的写入量只和被点赞的笔记数量有关。
+     * 分布式锁保证同一时间只有一个节点在写入，否则多个节点会重复写入同一份增量
+     */
+    @Scheduled(fixedDelay = 1000L)
+    public void flushLikeDelta() {
+        RLock lock = redissonClient.getLock(LOCK_BLOG_LIKE_FLUSH_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            //1. 读取当前所有的增量
+            Map<Object, Object> deltas = stringRedisTemplate.opsForHash().entries(BLOG_LIKE_DELTA_KEY);
+            for (Map.Entry<Object, Object> entry : deltas.entrySet()) {
+                String blogId = entry.getKey().toString();
+                long delta = Long.parseLong(entry.getValue().toString());
+                try {
+                    //2. 写入数据库
+                    if (delta != 0) {
+                        boolean updated = update().setSql(delta > 0 ? "liked = liked + " + delta : "liked = liked - " + (-delta))
+                                .eq("id", Long.valueOf(blogId))
+                                .update();
+                        if (!updated) {
+                            //2.1 笔记已不存在，丢弃增量和点赞数，不再重试
+                            log.warn("笔记不存在，丢弃点赞数增量，blogId：{}，delta：{}", blogId, delta);
+                            stringRedisTemplate.opsForHash().delete(BLOG_LIKED_COUNT_KEY, blogId);
+                        }
+                    }
+                    //3. 从增量中扣除已写入的部分
+                    stringRedisTemplate.execute(LIKE_DELTA_ACK_SCRIPT,
+                            Collections.singletonList(BLOG_LIKE_DELTA_KEY), blogId, String.valueOf(delta));
+                } catch (Exception e) {
+                    //失败的增量保留在Redis中，下一次继续写入
+                    log.error("点赞数写入数据库失败，blogId：{}，delta：{}", blogId, delta, e);
+                }
             }
+        } finally {
+            lock.unlock();
         }
-        return Result.ok();
     }
 
     @Override
@@ -128,33 +439,32 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.ok(Collections.emptyList());
         }
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idsStr = StrUtil.join(",", ids);
-        //select * from tb_user where id in (ids[0], ids[1] ...) order by field(id, ids[0], ids[1] ...)
-        List<UserDTO> userDTOS = userService.query().in("id", ids)
-                .last("order by field(id," + idsStr + ")")
-                .list().stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+        //按点赞时间的顺序从用户资料缓存中取出
+        Map<Long, UserDTO> users = userProfileCache.getAll(ids);
+        List<UserDTO> userDTOS = ids.stream()
+                .map(users::get)
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         return Result.ok(userDTOS);
     }
 
     @Override
+    @Transactional
     public Result saveBlog(Blog blog) {
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
         // 保存探店博文
         save(blog);
-        // 条件构造器
-        LambdaQueryWrapper<Follow> queryWrapper = new LambdaQueryWrapper<>();
-        // 从follow表最中，查找当前用户的粉丝  select * from follow where follow_user_id = user_id
-        queryWrapper.eq(Follow::getFollowUserId, user.getId());
-        List<Follow> follows = followService.list(queryWrapper);
-        for (Follow follow : follows) {
-            Long userId = follow.getUserId();
-            String key = FEED_KEY + userId;
-            stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
-        }
+        // 推送事件和笔记在同一个事务中提交，提交后由发件箱中继写入推送消息，发布请求不等待推送
+        feedOutboxService.record(blog.getId(), user.getId());
+        // 提交后加入热门笔记排行榜，之后的点赞由点赞脚本更新分数；排行榜还没有建立时由重建写入
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                syncHotBlog(Arrays.asList(blog.getId().toString(), "0"));
+            }
+        });
         // 返回id
         return Result.ok(blog.getId());
     }
@@ -163,52 +473,88 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         //1. 获取当前用户
         Long userId = UserHolder.getUser().getId();
-        //2. 查询该用户收件箱（之前我们存的key是固定前缀 + 粉丝id），所以根据当前用户id就可以查询是否有关注的人发了笔记
-        String key = FEED_KEY + userId;
-        Set<ZSetOperations.TypedTuple<String>> typeTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
-        //3. 非空判断
-        if (typeTuples == null || typeTuples.isEmpty()) {
-            return Result.ok(Collections.emptyList());
+        //1.1 收件箱续期，不活跃期间已过期的收件箱在这里重建
+        feedFanout.touchInbox(userId);
+        //2. 收件箱和关注的大V的发件箱都是数据源，大V的笔记不推送，只在读取时拉取
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect("follows:" + userId, FEED_BIG_AUTHOR_KEY);
+        if (bigAuthors != null) {
+            bigAuthors.forEach(authorId -> keys.add(FEED_OUTBOX_KEY + authorId));
         }
-        //4. 解析数据，blogId、minTime（时间戳）、offset，这里指定创建的list大小，可以略微提高效率，因为我们知道这个list就得是这么大
-        ArrayList<Long> ids = new ArrayList<>(typeTuples.size());
-        long minTime = 0;
-        int os = 1;
-        for (ZSetOperations.TypedTuple<String> typeTuple : typeTuples) {
-            //4.1 获取id
-            String id = typeTuple.getValue();
-            ids.add(Long.valueOf(id));
-            //4.2 获取score（时间戳）
-            long time = typeTuple.getScore().longValue();
-            if (time == minTime) {
-                os++;
-            } else {
-                minTime = time;
-                os = 1;
+        //3. offset是合并后整个流中的偏移量，每个数据源都要多取offset条，合并后再跳过；偏移量来自客户端，限制上限
+        int skip = Math.max(0, Math.min(offset, FEED_MAX_OFFSET));
+        int count = skip + FEED_PAGE_SIZE;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(
+                        key.getBytes(StandardCharsets.UTF_8), 0, max, 0, count);
             }
+            return null;
+        });
+        //4. k路归并后取出一页
+        List<Set<ZSetOperations.TypedTuple<String>>> sources = new ArrayList<>(results.size());
+        for (Object result : results) {
+            @SuppressWarnings("unchecked")
+            Set<ZSetOperations.TypedTuple<String>> source = (Set<ZSetOperations.TypedTuple<String>>) result;
+            sources.add(source);
+        }
+        ScrollResult scrollResult = FeedMergeUtil.merge(sources, max, skip, FEED_PAGE_SIZE);
+        //5. 非空判断
+        @SuppressWarnings("unchecked")
+        List<Long> ids = (List<Long>) scrollResult.getList();
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
         }
         //解决SQL的in不能排序问题，手动指定排序为传入的ids
         String idsStr = StrUtil.join(",",ids);
-        //5. 根据id查询blog
+        //6. 根据id查询blog
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idsStr + ")").list();
-        for (Blog blog : blogs) {
-            //5.1 查询发布该blog的用户信息
-            queryBlogUser(blog);
-            //5.2 查询当前用户是否给该blog点过赞
-            isBlogLiked(blog);
-        }
-        //6. 封装结果并返回
-        ScrollResult scrollResult = new ScrollResult();
+        //6.1 批量查询发布blog的用户信息和当前用户是否点过赞
+        hydrateBlogs(blogs);
+        //7. 封装结果并返回
         scrollResult.setList(blogs);
-        scrollResult.setOffset(os);
-        scrollResult.setMinTime(minTime);
         return Result.ok(scrollResult);
     }
+    /**
+     * 批量填充笔记的作者信息和当前用户的点赞状态，一页笔记只需一次MGET和一次管道查询
+     */
+    private void hydrateBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        //1. 收集作者id，从用户资料缓存中批量查询
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = userProfileCache.getAll(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+        //2. 当前用户已登录时，管道批量查询是否点过赞
+        UserDTO userDTO = UserHolder.getUser();
+        if (userDTO == null) {
+            return;
+        }
+        byte[] member = userDTO.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zSetCommands().zScore((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
     private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        UserDTO user = userProfileCache.get(blog.getUserId());
+        if (user != null) {
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
     }
 }
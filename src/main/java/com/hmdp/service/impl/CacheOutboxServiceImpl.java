@@ -0,0 +1,153 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ * 缓存失效发件箱服务实现类
+ * 业务写操作和失效事件在同一个事务中提交，由中继批量删除缓存，并在一段时间后再删除一次，
+ * 删除失败的事件会退避重试，因此缓存的正确性不再依赖很短的TTL。
+ * next_time的写入和比较都使用数据库时钟，不受应用服务器的时区和时钟偏差影响
+ * </p>
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    /**
+     * 每批处理的事件数量
+     */
+    private static final int BATCH_SIZE = 200;
+
+    /**
+     * 延迟双删的间隔，需要大于一次缓存重建的耗时
+     */
+    private static final long SECOND_DELETE_DELAY_MILLIS = 500L;
+
+    private static final ScheduledExecutorService RELAY_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    private final ReentrantLock relayLock = new ReentrantLock();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Override
+    public void record(String cacheKey) {
+        CacheOutbox outbox = new CacheOutbox()
+                .setCacheKey(cacheKey)
+                .setPhase(CacheOutbox.PHASE_DELETE)
+                .setRetryCount(0);
+        //next_time为空时取数据库默认值CURRENT_TIMESTAMP(3)
+        save(outbox);
+        //事务提交后立即触发一次中继，没有事务则直接触发
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    RELAY_EXECUTOR.execute(CacheOutboxServiceImpl.this::relay);
+                }
+            });
+        } else {
+            RELAY_EXECUTOR.execute(this::relay);
+        }
+    }
+
+    /**
+     * 兜底轮询，处理提交后触发失败或需要重试的事件
+     */
+    @Scheduled(fixedDelay = 1000L)
+    public void scheduledRelay() {
+        relay();
+    }
+
+    @Override
+    public void relay() {
+        //同一时间只有一个线程在处理，其它线程的触发由正在运行的中继顺带处理
+        if (!relayLock.tryLock()) {
+            return;
+        }
+        try {
+            while (true) {
+                //1. 查询到期的事件
+                List<CacheOutbox> batch = query()
+                        .apply("next_time <= NOW(3)")
+                        .orderByAsc("next_time")
+                        .last("LIMIT " + BATCH_SIZE)
+                        .list();
+                if (batch.isEmpty()) {
+                    return;
+                }
+                //2. 批量删除缓存，失败则整批退避重试
+                List<Long> ids = batch.stream().map(CacheOutbox::getId).collect(Collectors.toList());
+                try {
+                    deleteKeys(batch);
+                } catch (Exception e) {
+                    log.error("缓存失效事件处理失败，稍后重试，ids：{}", ids, e);
+                    update().setSql("next_time = DATE_ADD(NOW(3), INTERVAL LEAST(retry_count + 1, 60) SECOND)")
+                            .setSql("retry_count = retry_count + 1")
+                            .in("id", ids)
+                            .update();
+                    return;
+                }
+                //3. 第一次删除成功的事件等待延迟双删，第二次删除成功的事件直接移除
+                List<Long> firstDeleted = batch.stream()
+                        .filter(o -> o.getPhase() == CacheOutbox.PHASE_DELETE)
+                        .map(CacheOutbox::getId)
+                        .collect(Collectors.toList());
+                List<Long> secondDeleted = batch.stream()
+                        .filter(o -> o.getPhase() == CacheOutbox.PHASE_DELAYED_DELETE)
+                        .map(CacheOutbox::getId)
+                        .collect(Collectors.toList());
+                if (!firstDeleted.isEmpty()) {
+                    update().set("phase", CacheOutbox.PHASE_DELAYED_DELETE)
+                            .setSql("next_time = DATE_ADD(NOW(3), INTERVAL " + SECOND_DELETE_DELAY_MILLIS * 1000 + " MICROSECOND)")
+                            .in("id", firstDeleted)
+                            .update();
+                    RELAY_EXECUTOR.schedule(this::relay, SECOND_DELETE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (!secondDeleted.isEmpty()) {
+                    removeByIds(secondDeleted);
+                }
+            }
+        } catch (Exception e) {
+            log.error("缓存失效中继异常", e);
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    private void deleteKeys(List<CacheOutbox> batch) {
+        //管道批量执行DEL，一次往返
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (CacheOutbox outbox : batch) {
+                connection.del(outbox.getCacheKey().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        RELAY_EXECUTOR.shutdown();
+    }
+}
@@ -0,0 +1,135 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.entity.FeedOutbox;
+import com.hmdp.mapper.FeedOutboxMapper;
+import com.hmdp.service.IFeedOutboxService;
+import com.hmdp.utils.FeedFanout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * 笔记推送发件箱服务实现类
+ * 发布笔记和推送事件在同一个事务中提交，提交后由中继写入推送消息，
+ * 笔记在消费者读到消息之前一定已经对其它连接可见，事务回滚时也不会有消息发出；
+ * 写入失败的事件退避重试，重复写入时收件箱的ZADD是幂等的
+ * </p>
+ */
+@Slf4j
+@Service
+public class FeedOutboxServiceImpl extends ServiceImpl<FeedOutboxMapper, FeedOutbox> implements IFeedOutboxService {
+
+    /**
+     * 每批处理的事件数量
+     */
+    private static final int BATCH_SIZE = 200;
+
+    private static final ExecutorService RELAY_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final ReentrantLock relayLock = new ReentrantLock();
+
+    @Resource
+    private FeedFanout feedFanout;
+
+    @Override
+    public void record(Long blogId, Long authorId) {
+        FeedOutbox outbox = new FeedOutbox()
+                .setBlogId(blogId)
+                .setAuthorId(authorId)
+                .setRetryCount(0);
+        //next_time为空时取数据库默认值CURRENT_TIMESTAMP(3)
+        save(outbox);
+        //事务提交后立即触发一次中继，没有事务则直接触发
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    RELAY_EXECUTOR.execute(FeedOutboxServiceImpl.this::relay);
+                }
+            });
+        } else {
+            RELAY_EXECUTOR.execute(this::relay);
+        }
+    }
+
+    /**
+     * 兜底轮询，处理提交后触发失败或需要重试的事件
+     */
+    @Scheduled(fixedDelay = 1000L)
+    public void scheduledRelay() {
+        relay();
+    }
+
+    @Override
+    public void relay() {
+        //同一时间只有一个线程在处理，其它线程的触发由正在运行的中继顺带处理
+        if (!relayLock.tryLock()) {
+            return;
+        }
+        try {
+            while (true) {
+                //1. 查询到期的事件
+                List<FeedOutbox> batch = query()
+                        .apply("next_time <= NOW(3)")
+                        .orderByAsc("next_time")
+                        .last("LIMIT " + BATCH_SIZE)
+                        .list();
+                if (batch.isEmpty()) {
+                    return;
+                }
+                //2. 逐条写入推送消息，失败时剩余的事件退避重试
+                List<Long> done = new ArrayList<>(batch.size());
+                List<Long> failed = new ArrayList<>();
+                for (FeedOutbox outbox : batch) {
+                    if (!failed.isEmpty()) {
+                        failed.add(outbox.getId());
+                        continue;
+                    }
+                    try {
+                        feedFanout.publish(outbox.getBlogId(), outbox.getAuthorId());
+                        done.add(outbox.getId());
+                    } catch (IllegalStateException e) {
+                        //笔记已不存在，丢弃事件
+                        log.warn("笔记不存在，丢弃推送事件，blogId：{}", outbox.getBlogId());
+                        done.add(outbox.getId());
+                    } catch (Exception e) {
+                        log.error("笔记推送事件处理失败，稍后重试，blogId：{}", outbox.getBlogId(), e);
+                        failed.add(outbox.getId());
+                    }
+                }
+                //3. 已写入的事件移除
+                if (!done.isEmpty()) {
+                    removeByIds(done);
+                }
+                if (!failed.isEmpty()) {
+                    update().setSql("next_time = DATE_ADD(NOW(3), INTERVAL LEAST(retry_count + 1, 60) SECOND)")
+                            .setSql("retry_count = retry_count + 1")
+                            .in("id", failed)
+                            .update();
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("笔记推送中继异常", e);
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        RELAY_EXECUTOR.shutdown();
+    }
+}
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -8,13 +7,14 @@ import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IUserService;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserProfileCache;
 import org.aspectj.lang.annotation.Around;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -35,7 +35,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private IUserService userService;
+    private UserProfileCache userProfileCache;
 
     @Override
     public Result isFollow(Long followUserId) {
@@ -64,8 +64,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         //将结果转为list
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
         //之后根据ids去查询共同关注的用户，封装成UserDto再返回
-        List<UserDTO> userDTOS = userService.listByIds(ids).stream().map(user ->
-                BeanUtil.copyProperties(user, UserDTO.class)).collect(Collectors.toList());
+        List<UserDTO> userDTOS = new ArrayList<>(userProfileCache.getAll(ids).values());
         return Result.ok(userDTOS);
     }
 
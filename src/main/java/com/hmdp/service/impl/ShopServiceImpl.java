@@ -1,36 +1,75 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.annotation.HmdpCacheEvict;
+import com.hmdp.annotation.HmdpCacheable;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.RedisData;
+import com.hmdp.dto.ShopDetailDTO;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IBlogService;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CursorUtil;
+import com.hmdp.utils.ETagUtil;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
-import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.Point;
 import org.springframework.data.geo.GeoResults;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.time.LocalDateTime;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -46,18 +85,83 @@ import static com.hmdp.utils.RedisConstants.*;
 @Slf4j
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
+    /**
+     * 附近商铺的查询半径（米）
+     */
+    private static final double SHOP_GEO_RADIUS = 5000;
+
+    /**
+     * 重建地理索引和排行榜时每批管道写入的商铺数量
+     */
+    private static final int REBUILD_BATCH_SIZE = 500;
+
+    private static final String REBUILD_SUFFIX = ":rebuild";
+
+    private static final String REBUILD_GEO = "geo";
+
+    private static final String REBUILD_RANK = "rank";
+
+    /**
+     * 重建标记的有效期，节点在重建途中宕机时标记自动失效
+     */
+    private static final long REBUILD_FLAG_TTL_MINUTES = 60L;
+
+    /**
+     * 排行榜指标 -> 取值方法
+     */
+    private static final Map<String, Function<Shop, Integer>> SHOP_RANK_METRICS = new LinkedHashMap<>();
+
+    static {
+        SHOP_RANK_METRICS.put("score", Shop::getScore);
+        SHOP_RANK_METRICS.put("sold", Shop::getSold);
+        SHOP_RANK_METRICS.put("comments", Shop::getComments);
+    }
+
+    /**
+     * 商铺详情页展示的热门笔记数量
+     */
+    private static final int SHOP_DETAIL_BLOG_SIZE = 5;
+
+    /**
+     * 商铺详情并行查询的线程池，队列有界，满了之后直接拒绝
+     */
+    private static final ExecutorService SHOP_DETAIL_EXECUTOR = new ThreadPoolExecutor(8, 16,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(256), new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * 商铺详情每个部分的超时时间
+     */
+    @Value("${hmdp.shop.detail.timeout-millis:300}")
+    private long detailTimeoutMillis;
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private IVoucherService voucherService;
+
+    @Autowired
+    private IBlogService blogService;
+
     @Autowired
     private CacheClient cacheClient;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    @Autowired
+    private ShopGeoIndex shopGeoIndex;
+
+    @Autowired
+    private ShopNameIndex shopNameIndex;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
 
     @Override
     public Result queryById(Long id) {
-        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
-//        Shop shop = queryWithLogicalExpire(id);
+        //通过代理对象调用，才能走缓存切面
+        Shop shop = ((IShopService) AopContext.currentProxy()).queryShopById(id);
         if (shop == null) {
             return Result.fail("店铺不存在！！");
         }
@@ -65,123 +169,438 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
     @Override
-    public Shop queryWithPassThrough(Long id) {
-        //先从Redis中查，这里的常量值是固定的前缀 + 店铺id
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //如果不为空（查询到了），则转为Shop类型直接返回
-        if (StrUtil.isNotBlank(shopJson)) {
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        if (shopJson != null) {
-            return null;
+    public String queryShopETag(Long id) {
+        //只读取缓存头部的版本号，版本号是每次修改都递增的version字段，同一秒内的修改也会生成新的ETag；
+        //未修改过的商铺version为0，版本号取更新时间，第一次修改后的version一定大于它
+        Long version = cacheClient.readVersion(CACHE_SHOP_KEY + id);
+        return version == null || version == 0 ? null : ETagUtil.weak(version);
+    }
+
+    @Override
+    @HmdpCacheable(keyPrefix = CACHE_SHOP_KEY)
+    public Shop queryShopById(Long id) {
+        return getById(id);
+    }
+
+    @Override
+    public Result queryShopDetail(Long id) {
+        //1. 在调用线程中取出代理对象和登录用户，工作线程中拿不到
+        IShopService proxy = (IShopService) AopContext.currentProxy();
+        UserDTO user = UserHolder.getUser();
+        //2. 并行查询商铺、优惠券和热门笔记
+        CompletableFuture<Shop> shopFuture = submitDetailPart(user, () -> proxy.queryShopById(id));
+        CompletableFuture<List<Voucher>> voucherFuture = submitDetailPart(user, () -> voucherService.listVoucherOfShop(id));
+        CompletableFuture<List<Blog>> blogFuture = submitDetailPart(user, () -> blogService.queryHotBlogOfShop(id, SHOP_DETAIL_BLOG_SIZE));
+        //3. 每个部分最多等到超时时间，超时或失败的部分留空
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(detailTimeoutMillis);
+        ShopDetailDTO detail = new ShopDetailDTO();
+        detail.setShop(awaitDetailPart("shop", shopFuture, deadline, detail.getMissingParts()));
+        if (detail.getShop() == null && detail.getMissingParts().isEmpty()) {
+            voucherFuture.cancel(true);
+            blogFuture.cancel(true);
+            return Result.fail("店铺不存在！！");
         }
-        //否则去数据库中查
-        Shop shop = getById(id);
-        //查不到，则将空值写入Redis
-        if (shop == null) {
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+        detail.setVouchers(awaitDetailPart("vouchers", voucherFuture, deadline, detail.getMissingParts()));
+        detail.setBlogs(awaitDetailPart("blogs", blogFuture, deadline, detail.getMissingParts()));
+        return Result.ok(detail);
+    }
+
+    private <T> CompletableFuture<T> submitDetailPart(UserDTO user, Supplier<T> part) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                UserHolder.saveUser(user);
+                try {
+                    return part.get();
+                } finally {
+                    UserHolder.removeUser();
+                }
+            }, SHOP_DETAIL_EXECUTOR);
+        } catch (RejectedExecutionException e) {
+            //线程池已满，这一部分直接按失败处理
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private <T> T awaitDetailPart(String part, CompletableFuture<T> future, long deadline, List<String> missingParts) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            log.warn("商铺详情查询超时，part：{}", part);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("商铺详情查询失败，part：{}", part, e.getCause());
+        }
+        missingParts.add(part);
+        return null;
+    }
+
+    @Override
+    @HmdpCacheEvict(keyPrefix = CACHE_SHOP_KEY, key = "#shop.id")
+    public Result update(Shop shop) {
+        //首先先判一下空
+        if (shop.getId() == null) {
+            return Result.fail("店铺id不能为空！！");
+        }
+        //查询修改前的类型、坐标和排行榜指标，用于维护地理索引和排行榜
+        Shop old = query().select("id", "type_id", "x", "y", "score", "sold", "comments").eq("id", shop.getId()).one();
+        if (old == null) {
+            return Result.fail("店铺不存在！！");
         }
-        //查到了则转为json字符串
-        String jsonStr = JSONUtil.toJsonStr(shop);
-        //并存入redis，设置TTL
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, jsonStr, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //最终把查询到的商户信息返回给前端
-        return shop;
+        //先修改数据库，缓存失效事件由切面在同一事务中写入发件箱；
+        //更新时间和版本号由数据库维护，忽略客户端提交的值，版本号至少递增1，且不小于当前的毫秒时间戳
+        shop.setUpdateTime(null);
+        shop.setVersion(null);
+        update(shop, new UpdateWrapper<Shop>()
+                .eq("id", shop.getId())
+                .setSql("version = GREATEST(version + 1, CAST(UNIX_TIMESTAMP(NOW(3)) * 1000 AS UNSIGNED))"));
+        //没有修改的字段沿用原值
+        Long typeId = shop.getTypeId() != null ? shop.getTypeId() : old.getTypeId();
+        Double x = shop.getX() != null ? shop.getX() : old.getX();
+        Double y = shop.getY() != null ? shop.getY() : old.getY();
+        afterCommit(() -> {
+            //正在重建时记录修改，重建完成后重放
+            markChangedDuringRebuild(old.getId());
+            //类型或坐标变化时移动地理索引，失败由定时全量重建兜底
+            if (!typeId.equals(old.getTypeId())) {
+                stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), old.getId().toString());
+            }
+            if (!typeId.equals(old.getTypeId()) || !x.equals(old.getX()) || !y.equals(old.getY())) {
+                stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + typeId, new Point(x, y), old.getId().toString());
+            }
+            //类型或指标变化时更新排行榜
+            updateShopRank(old, typeId, shop);
+            //通知各节点刷新本地地理索引
+            stringRedisTemplate.convertAndSend(SHOP_CHANGE_TOPIC, old.getId().toString());
+        });
+        return Result.ok();
     }
 
     @Override
-    public Shop queryWithMutex(Long id) {
-        //先从Redis中查，这里的常量值是固定的前缀 + 店铺id
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //如果不为空（查询到了），则转为Shop类型直接返回
-        if (StrUtil.isNotBlank(shopJson)) {
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        if (shopJson != null) {
+    public Result saveShop(Shop shop) {
+        //1. 写入数据库，版本号由数据库维护
+        shop.setVersion(null);
+        save(shop);
+        //2. 写入地理索引和排行榜，并通知各节点刷新本地地理索引
+        afterCommit(() -> {
+            markChangedDuringRebuild(shop.getId());
+            if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                        new Point(shop.getX(), shop.getY()), shop.getId().toString());
+            }
+            if (shop.getTypeId() != null) {
+                updateShopRank(null, shop.getTypeId(), shop);
+            }
+            stringRedisTemplate.convertAndSend(SHOP_CHANGE_TOPIC, shop.getId().toString());
+        });
+        return Result.ok(shop.getId());
+    }
+
+    /**
+     * 全量重建地理索引。
+     * 以数据库游标流式读取tb_shop，每批管道写入临时key，全部写完后再RENAME覆盖正式key，内存占用与商铺数量无关；
+     * 重建期间增量修改过的商铺在RENAME之后按数据库的最新值重放，已不存在的类型的key直接删除
+     */
+    @Override
+    @Scheduled(cron = "0 0 4 * * ?")
+    public void rebuildShopGeo() {
+        rebuildWithReplay(REBUILD_GEO, typeIds -> {
+            Set<String> keys = new HashSet<>();
+            typeIds.forEach(typeId -> keys.add(SHOP_GEO_KEY + typeId));
+            return keys;
+        }, this::writeGeoBatch, typeId -> Collections.singletonList(SHOP_GEO_KEY + typeId), this::replayGeo);
+    }
+
+    /**
+     * 全量重建排行榜，做法与重建地理索引相同
+     */
+    @Override
+    @Scheduled(cron = "0 30 4 * * ?")
+    public void rebuildShopRank() {
+        rebuildWithReplay(REBUILD_RANK, typeIds -> {
+            Set<String> keys = new HashSet<>();
+            typeIds.forEach(typeId -> SHOP_RANK_METRICS.keySet().forEach(metric -> keys.add(shopRankKey(metric, typeId))));
+            return keys;
+        }, batch -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : batch) {
+                byte[] member = shop.getId().toString().getBytes(StandardCharsets.UTF_8);
+                SHOP_RANK_METRICS.forEach((metric, getter) -> connection.zSetCommands().zAdd(
+                        (shopRankKey(metric, shop.getTypeId()) + REBUILD_SUFFIX).getBytes(StandardCharsets.UTF_8),
+                        rankScore(getter.apply(shop)), member));
+            }
             return null;
+        }), typeId -> SHOP_RANK_METRICS.keySet().stream()
+                .map(metric -> shopRankKey(metric, typeId))
+                .collect(Collectors.toList()), this::replayRank);
+    }
+
+    /**
+     * 重建的通用流程：
+     * 1. 分布式锁保证同一时间只有一个节点在重建，其它节点直接跳过；
+     * 2. 重建期间设置标记，增量修改的商铺id会记录到变更集合中；
+     * 3. 写入临时key后RENAME覆盖正式key，删除已不存在的类型的key；
+     * 4. 清除标记后取出变更集合，按数据库的最新值重放，弥补被RENAME覆盖的增量修改
+     *
+     * @param kind       重建的类型，geo或rank
+     * @param liveKeys   根据所有类型id计算应当存在的正式key
+     * @param writer     每批商铺写入临时key
+     * @param typeKeys   一个类型对应的正式key
+     * @param replayer   重放变更的商铺
+     */
+    private void rebuildWithReplay(String kind, Function<Set<Long>, Set<String>> liveKeys, Consumer<List<Shop>> writer,
+                                   Function<Long, List<String>> typeKeys, BiConsumer<Collection<Long>, Set<Long>> replayer) {
+        RLock lock = redissonClient.getLock(LOCK_SHOP_REBUILD_KEY + kind);
+        if (!lock.tryLock()) {
+            log.info("其它节点正在重建，跳过本次重建：{}", kind);
+            return;
         }
-        Shop shop = null;
+        String flagKey = SHOP_REBUILD_KEY + kind;
+        String changedKey = flagKey + ":changed";
         try {
-            //否则去数据库中查
-            boolean flag = tryLock(LOCK_SHOP_KEY + id);
-            if (!flag) {
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            //查不到，则将空值写入Redis
-            shop = getById(id);
-            if (shop == null) {
-                stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //查到了则转为json字符串
-            String jsonStr = JSONUtil.toJsonStr(shop);
-            //并存入redis，设置TTL
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, jsonStr, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-            //最终把查询到的商户信息返回给前端
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            long begin = System.currentTimeMillis();
+            //1. 设置重建标记，有效期兜底节点宕机的情况
+            stringRedisTemplate.opsForValue().set(flagKey, "1", REBUILD_FLAG_TTL_MINUTES, TimeUnit.MINUTES);
+            //2. 流式读取商铺写入临时key，先清理上次失败留下的临时key
+            Set<Long> typeIds = new HashSet<>();
+            int count = scanShops(batch -> {
+                for (Shop shop : batch) {
+                    if (typeIds.add(shop.getTypeId())) {
+                        typeKeys.apply(shop.getTypeId()).forEach(key -> stringRedisTemplate.delete(key + REBUILD_SUFFIX));
+                    }
+                }
+                writer.accept(batch);
+            });
+            //3. 覆盖正式key，删除已不存在的类型的key
+            for (Long typeId : typeIds) {
+                for (String key : typeKeys.apply(typeId)) {
+                    if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key + REBUILD_SUFFIX))) {
+                        stringRedisTemplate.rename(key + REBUILD_SUFFIX, key);
+                    }
+                }
+            }
+            String prefix = REBUILD_GEO.equals(kind) ? SHOP_GEO_KEY : SHOP_RANK_KEY;
+            int orphans = deleteOrphanKeys(prefix, liveKeys.apply(typeIds));
+            //4. 先清除标记再取出变更集合，之后的修改直接写入正式key，不会再被覆盖
+            stringRedisTemplate.delete(flagKey);
+            Set<String> changed = stringRedisTemplate.opsForSet().members(changedKey);
+            stringRedisTemplate.delete(changedKey);
+            if (changed != null && !changed.isEmpty()) {
+                replayer.accept(changed.stream().map(Long::valueOf).collect(Collectors.toList()), typeIds);
+            }
+            log.info("重建完成：{}，商铺 {} 个，类型 {} 个，重放修改 {} 个，删除过期key {} 个，耗时 {} ms", kind, count,
+                    typeIds.size(), changed == null ? 0 : changed.size(), orphans, System.currentTimeMillis() - begin);
         } finally {
-            unlock(LOCK_SHOP_KEY + id);
+            lock.unlock();
         }
-        return shop;
     }
 
+    /**
+     * 增量修改前调用，正在重建时记录商铺id，重建完成后重放。
+     * 必须在写入正式key之前记录，这样晚于重建读取变更集合的记录，其写入也一定晚于RENAME
+     */
+    private void markChangedDuringRebuild(Long shopId) {
+        for (String kind : new String[]{REBUILD_GEO, REBUILD_RANK}) {
+            String flagKey = SHOP_REBUILD_KEY + kind;
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(flagKey))) {
+                stringRedisTemplate.opsForSet().add(flagKey + ":changed", shopId.toString());
+                stringRedisTemplate.expire(flagKey + ":changed", REBUILD_FLAG_TTL_MINUTES, TimeUnit.MINUTES);
+            }
+        }
+    }
 
-    @Override
-    public Shop queryWithLogicalExpire(Long id) {
-        //1. 从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //2. 如果未命中，则返回空
-        if (StrUtil.isBlank(json)) {
+    /**
+     * 按数据库的最新值重放地理索引：先从所有类型中移除，再加入当前类型，已删除的商铺只移除
+     */
+    private void replayGeo(Collection<Long> shopIds, Set<Long> typeIds) {
+        List<Shop> shops = query().select("id", "type_id", "x", "y").in("id", shopIds).list();
+        Set<Long> allTypeIds = new HashSet<>(typeIds);
+        shops.forEach(shop -> allTypeIds.add(shop.getTypeId()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long shopId : shopIds) {
+                byte[] member = shopId.toString().getBytes(StandardCharsets.UTF_8);
+                for (Long typeId : allTypeIds) {
+                    connection.zSetCommands().zRem((SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8), member);
+                }
+            }
+            for (Shop shop : shops) {
+                if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    connection.geoCommands().geoAdd((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                            new Point(shop.getX(), shop.getY()), shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 按数据库的最新值重放排行榜，做法与重放地理索引相同
+     */
+    private void replayRank(Collection<Long> shopIds, Set<Long> typeIds) {
+        List<Shop> shops = query().select("id", "type_id", "score", "sold", "comments").in("id", shopIds).list();
+        Set<Long> allTypeIds = new HashSet<>(typeIds);
+        shops.forEach(shop -> allTypeIds.add(shop.getTypeId()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long shopId : shopIds) {
+                byte[] member = shopId.toString().getBytes(StandardCharsets.UTF_8);
+                for (Long typeId : allTypeIds) {
+                    for (String metric : SHOP_RANK_METRICS.keySet()) {
+                        connection.zSetCommands().zRem(shopRankKey(metric, typeId).getBytes(StandardCharsets.UTF_8), member);
+                    }
+                }
+            }
+            for (Shop shop : shops) {
+                if (shop.getTypeId() == null) {
+                    continue;
+                }
+                byte[] member = shop.getId().toString().getBytes(StandardCharsets.UTF_8);
+                SHOP_RANK_METRICS.forEach((metric, getter) -> connection.zSetCommands().zAdd(
+                        shopRankKey(metric, shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                        rankScore(getter.apply(shop)), member));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 扫描前缀下的所有key，删除不在liveKeys中的key，包括已不存在的类型和上次失败留下的临时key
+     */
+    private int deleteOrphanKeys(String prefix, Set<String> liveKeys) {
+        List<String> orphans = new ArrayList<>();
+        ScanOptions options = ScanOptions.scanOptions().match(prefix + "*").count(REBUILD_BATCH_SIZE).build();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (org.springframework.data.redis.core.Cursor<byte[]> cursor = connection.keyCommands().scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    if (!liveKeys.contains(key)) {
+                        orphans.add(key);
+                    }
+                }
+            }
             return null;
+        });
+        if (!orphans.isEmpty()) {
+            stringRedisTemplate.delete(orphans);
         }
-        //3. 命中，将json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject shopJson = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //4. 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5. 过期，直接返回商铺信息
-            log.info("过期，直接返回店铺信息");
-            return shop;
-        }
-        //6. 过期，尝试获取互斥锁
-        boolean flag = tryLock(LOCK_SHOP_KEY + id);
-        //7. 获取到了锁
-        if (flag) {
-            //8. 开启独立线程
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    this.saveShop2Redis(id, LOCK_SHOP_TTL);
-                    log.info("独立线程完成缓存重构");
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unlock(LOCK_SHOP_KEY + id);
+        return orphans.size();
+    }
+
+    /**
+     * 以数据库游标流式读取tb_shop，按批交给handler处理，返回处理的商铺数量
+     */
+    private int scanShops(Consumer<List<Shop>> handler) {
+        Integer count = transactionTemplate.execute(status -> {
+            int total = 0;
+            List<Shop> batch = new ArrayList<>(REBUILD_BATCH_SIZE);
+            try (Cursor<Shop> cursor = getBaseMapper().scanIndexFields()) {
+                for (Shop shop : cursor) {
+                    if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                        continue;
+                    }
+                    batch.add(shop);
+                    if (batch.size() == REBUILD_BATCH_SIZE) {
+                        handler.accept(batch);
+                        total += batch.size();
+                        batch.clear();
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (!batch.isEmpty()) {
+                handler.accept(batch);
+            }
+            return total + batch.size();
+        });
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 更新商铺在各个排行榜中的分数，类型变化时从旧类型的排行榜中移除
+     *
+     * @param old    修改前的商铺，新增时为null
+     * @param typeId 修改后的类型
+     * @param shop   本次写入的字段，为null的指标沿用修改前的值
+     */
+    private void updateShopRank(Shop old, Long typeId, Shop shop) {
+        String member = (old != null ? old.getId() : shop.getId()).toString();
+        boolean typeChanged = old != null && !typeId.equals(old.getTypeId());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            SHOP_RANK_METRICS.forEach((metric, getter) -> {
+                Integer value = getter.apply(shop);
+                Integer oldValue = old == null ? null : getter.apply(old);
+                if (typeChanged) {
+                    connection.zSetCommands().zRem(shopRankKey(metric, old.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                            member.getBytes(StandardCharsets.UTF_8));
+                }
+                if (typeChanged || old == null || (value != null && !value.equals(oldValue))) {
+                    connection.zSetCommands().zAdd(shopRankKey(metric, typeId).getBytes(StandardCharsets.UTF_8),
+                            rankScore(value != null ? value : oldValue), member.getBytes(StandardCharsets.UTF_8));
                 }
             });
-            //9. 直接返回商铺信息
-            return shop;
-        }
-        //10. 未获取到锁，直接返回商铺信息
-        return shop;
+            return null;
+        });
+    }
+
+    private static String shopRankKey(String metric, Long typeId) {
+        return SHOP_RANK_KEY + metric + ":" + typeId;
+    }
+
+    private static double rankScore(Integer value) {
+        return value == null ? 0 : value;
     }
 
     @Override
-    public Result update(Shop shop) {
-        //首先先判一下空
-        if (shop.getId() == null) {
-            return Result.fail("店铺id不能为空！！");
+    public Result queryShopRank(Long typeId, String metric, Integer current) {
+        //1. 校验排行榜指标
+        if (!SHOP_RANK_METRICS.containsKey(metric)) {
+            return Result.fail("不支持的排行榜：" + metric);
+        }
+        //2. ZREVRANGE key start end 分页查询商铺id
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<String> members = stringRedisTemplate.opsForZSet()
+                .reverseRange(shopRankKey(metric, typeId), start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (members == null || members.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //3. 通过缓存批量查询商铺
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<Shop> shops = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(shops);
+    }
+
+    private void writeGeoBatch(List<Shop> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : batch) {
+                connection.geoCommands().geoAdd(
+                        (SHOP_GEO_KEY + shop.getTypeId() + REBUILD_SUFFIX).getBytes(StandardCharsets.UTF_8),
+                        new Point(shop.getX(), shop.getY()),
+                        shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 事务提交后再执行，避免其它节点读到未提交的数据；没有事务则直接执行
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
         }
-        //先修改数据库
-        updateById(shop);
-        //再删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
-        return Result.ok();
     }
 
     @Override
@@ -198,55 +617,147 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //2. 计算分页查询参数
         int from = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
         int end = current * SystemConstants.MAX_PAGE_SIZE;
-        String key = SHOP_GEO_KEY + typeId;
-        //3. 查询redis、按照距离排序、分页; 结果：shopId、distance
-        //GEOSEARCH key FROMLONLAT x y BYRADIUS 5000 m WITHDIST
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(key,
-                GeoReference.fromCoordinate(x, y),
-                new Distance(5000),
-                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end));
-        if (results == null) {
-            return Result.ok(Collections.emptyList());
-        }
-        //4. 解析出id
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
-        if (list.size() < from) {
+        //3. 按距离查询前end个
+        List<ShopGeoIndex.GeoHit> hits = searchNearby(typeId, x, y, end, -1, 0);
+        if (hits.size() <= from) {
             //起始查询位置大于数据总量，则说明没数据了，返回空集合
             return Result.ok(Collections.emptyList());
         }
-        ArrayList<Long> ids = new ArrayList<>(list.size());
-        HashMap<String, Distance> distanceMap = new HashMap<>(list.size());
-        list.stream().skip(from).forEach(result -> {
-            String shopIdStr = result.getContent().getName();
-            ids.add(Long.valueOf(shopIdStr));
-            Distance distance = result.getDistance();
-            distanceMap.put(shopIdStr, distance);
-        });
-        //5. 根据id查询shop
+        //4. 跳过前面的页，根据id查询shop
+        return Result.ok(loadShops(hits.subList(from, hits.size())));
+    }
+
+    @Override
+    public Result scrollShopByType(Integer typeId, Double x, Double y, String cursor) {
+        //1. 不需要根据距离查询时，按id滚动
+        if (x == null || y == null) {
+            return scrollShopByTypeId(typeId, cursor);
+        }
+        //2. 解析游标，游标中是上一页最后一个商铺的距离和id
+        double lastDistance = -1;
+        long lastId = 0;
+        if (StrUtil.isNotBlank(cursor)) {
+            try {
+                String[] values = CursorUtil.decode(cursor, 2);
+                lastDistance = Double.parseDouble(values[0]);
+                lastId = Long.parseLong(values[1]);
+            } catch (IllegalArgumentException e) {
+                return Result.fail("游标无效！");
+            }
+        }
+        //3. 从游标之后开始查询一页
+        List<ShopGeoIndex.GeoHit> hits = searchNearby(typeId, x, y, SystemConstants.MAX_PAGE_SIZE, lastDistance, lastId);
+        //4. 封装返回，不满一页说明没有更多数据了
+        CursorResult r = new CursorResult();
+        r.setList(loadShops(hits));
+        if (hits.size() == SystemConstants.MAX_PAGE_SIZE) {
+            ShopGeoIndex.GeoHit last = hits.get(hits.size() - 1);
+            r.setCursor(CursorUtil.encode(last.getDistance(), last.getId()));
+        }
+        return Result.ok(r);
+    }
+
+    /**
+     * 按(type_id, id)索引滚动查询，不做count查询，翻到多深都只扫描一页数据
+     */
+    private Result scrollShopByTypeId(Integer typeId, String cursor) {
+        Long lastId = null;
+        if (StrUtil.isNotBlank(cursor)) {
+            try {
+                lastId = Long.valueOf(CursorUtil.decode(cursor, 1)[0]);
+            } catch (IllegalArgumentException e) {
+                return Result.fail("游标无效！");
+            }
+        }
+        List<Shop> shops = query()
+                .eq("type_id", typeId)
+                .gt(lastId != null, "id", lastId)
+                .orderByAsc("id")
+                .last("LIMIT " + SystemConstants.DEFAULT_PAGE_SIZE)
+                .list();
+        CursorResult r = new CursorResult();
+        r.setList(shops);
+        if (shops.size() == SystemConstants.DEFAULT_PAGE_SIZE) {
+            r.setCursor(CursorUtil.encode(shops.get(shops.size() - 1).getId()));
+        }
+        return Result.ok(r);
+    }
+
+    /**
+     * 查询附近的商铺，结果按距离、id升序排列，只返回排在(lastDistance, lastId)之后的数据
+     */
+    private List<ShopGeoIndex.GeoHit> searchNearby(Integer typeId, double x, double y, int limit,
+                                                   double lastDistance, long lastId) {
+        //1. 本地地理索引已加载时直接在本地计算
+        if (shopGeoIndex.isReady()) {
+            return shopGeoIndex.nearest(typeId.longValue(), x, y, limit, SHOP_GEO_RADIUS, lastDistance, lastId);
+        }
+        //2. 否则走Redis GEO，GEOSEARCH不能从指定距离开始，只能逐步扩大数量再过滤掉游标之前的数据
+        ShopGeoIndex.GeoHit after = new ShopGeoIndex.GeoHit(lastId, lastDistance);
+        String key = SHOP_GEO_KEY + typeId;
+        for (int count = limit; ; count *= 2) {
+            //GEOSEARCH key FROMLONLAT x y BYRADIUS 5000 m WITHDIST ASC COUNT count
+            GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(key,
+                    GeoReference.fromCoordinate(x, y),
+                    new Distance(SHOP_GEO_RADIUS),
+                    RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(count));
+            if (results == null) {
+                return Collections.emptyList();
+            }
+            List<ShopGeoIndex.GeoHit> hits = results.getContent().stream()
+                    .map(result -> new ShopGeoIndex.GeoHit(
+                            Long.parseLong(result.getContent().getName()), result.getDistance().getValue()))
+                    .filter(hit -> hit.compareTo(after) > 0)
+                    .sorted()
+                    .collect(Collectors.toList());
+            if (hits.size() >= limit || results.getContent().size() < count) {
+                return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+            }
+        }
+    }
+
+    /**
+     * 根据id查询shop，保持传入的顺序并设置距离
+     */
+    private List<Shop> loadShops(List<ShopGeoIndex.GeoHit> hits) {
+        if (hits.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> ids = new ArrayList<>(hits.size());
+        HashMap<Long, Double> distanceMap = new HashMap<>(hits.size());
+        for (ShopGeoIndex.GeoHit hit : hits) {
+            ids.add(hit.getId());
+            distanceMap.put(hit.getId(), hit.getDistance());
+        }
         String idsStr = StrUtil.join(",", ids);
         List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD( id," + idsStr + ")").list();
         for (Shop shop : shops) {
-            //设置shop的举例属性，从distanceMap中根据shopId查询
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            //设置shop的距离属性，从distanceMap中根据shopId查询
+            shop.setDistance(distanceMap.get(shop.getId()));
         }
-        //6. 返回
-        return Result.ok(shops);
-    }
-
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+        return shops;
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        //1. 名称索引未加载或没有关键字时，按原方式分页查询
+        if (StrUtil.isBlank(name) || !shopNameIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        //2. 在本地索引中搜索排好序的商铺id
+        List<Long> ids = shopNameIndex.search(name,
+                (current - 1) * SystemConstants.MAX_PAGE_SIZE, SystemConstants.MAX_PAGE_SIZE);
+        //3. 通过缓存批量查询商铺，未命中的一次查库
+        List<Shop> shops = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(shops);
     }
 
     public void saveShop2Redis(Long id, Long expirSeconds) {
         Shop shop = getById(id);
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expirSeconds));
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.setWithLogicExpire(CACHE_SHOP_KEY + id, shop, expirSeconds, TimeUnit.SECONDS);
     }
 }
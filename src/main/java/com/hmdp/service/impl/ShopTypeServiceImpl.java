@@ -1,61 +1,169 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.crypto.digest.DigestUtil;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.Shop;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.ETagUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY;
 
 /**
  * <p>
  * 服务实现类
+ * 商铺类型几乎不变，查询直接返回本地的不可变快照，响应体也提前序列化好；
+ * 后台定时比较Redis中的版本号，版本变化时重新加载，同一时间只有一个线程加载。
+ * 商铺类型没有修改接口，直接修改数据库后需删除cache:shop-type:并INCR cache:shop-type:version
  * </p>
  *
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private volatile Snapshot snapshot;
+
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
     @Override
     public Result queryList() {
-        //先从Redis中查，这里的常量值是固定前缀 + 店铺id
-        List<String> shopTypes =
-                stringRedisTemplate.opsForList().range(CACHE_SHOP_TYPE_KEY, 0, -1);
-        //如果不为空（查询到了），则转为ShopType类型直接返回
-        if (!shopTypes.isEmpty()) {
-            List<ShopType> tmp = new ArrayList<>();
-            for (String types : shopTypes) {
-                ShopType shopType = JSONUtil.toBean(types, ShopType.class);
-                tmp.add(shopType);
+        return Result.ok(currentSnapshot().types);
+    }
+
+    @Override
+    public byte[] queryListBody() {
+        return currentSnapshot().body;
+    }
+
+    @Override
+    public String queryListETag() {
+        return currentSnapshot().eTag;
+    }
+
+    private Snapshot currentSnapshot() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        //第一次查询时加载，其它线程等待同一次加载的结果
+        reloadLock.lock();
+        try {
+            if (snapshot == null) {
+                snapshot = load(readVersion());
             }
-            return Result.ok(tmp);
+            return snapshot;
+        } finally {
+            reloadLock.unlock();
         }
-        //否则去数据库中查
-        List<ShopType> tmp = query().orderByAsc("sort").list();
-        if (tmp == null){
-            return Result.fail("店铺类型不存在！！");
+    }
+
+    /**
+     * 定时检查版本号，版本变化时重新加载快照
+     */
+    @Scheduled(fixedDelay = 1000L)
+    public void refreshIfChanged() {
+        if (snapshot == null || !reloadLock.tryLock()) {
+            return;
         }
-        //查到了转为json字符串，存入redis
-        for (ShopType shopType : tmp) {
-            String jsonStr = JSONUtil.toJsonStr(shopType);
-            shopTypes.add(jsonStr);
+        try {
+            String version = readVersion();
+            if (!Objects.equals(version, snapshot.version)) {
+                snapshot = load(version);
+                log.info("商铺类型快照已更新，版本：{}", version);
+            }
+        } catch (Exception e) {
+            //加载失败时继续使用旧快照，下次再试
+            log.error("商铺类型快照更新失败", e);
+        } finally {
+            reloadLock.unlock();
         }
-        stringRedisTemplate.opsForList().leftPushAll(CACHE_SHOP_TYPE_KEY,shopTypes);
-        //最终把查询到的商户分类信息返回给前端
-        return Result.ok(tmp);
+    }
+
+    private String readVersion() {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+        return version == null ? "0" : version;
+    }
+
+    private Snapshot load(String version) {
+        //1. 先从Redis中查
+        List<String> jsons = stringRedisTemplate.opsForList().range(CACHE_SHOP_TYPE_KEY, 0, -1);
+        List<ShopType> types = new ArrayList<>();
+        if (jsons != null && !jsons.isEmpty()) {
+            for (String json : jsons) {
+                types.add(JSONUtil.toBean(json, ShopType.class));
+            }
+            //旧版本用leftPushAll写入的列表是倒序的，不依赖列表中的顺序，按sort重新排序
+            types.sort(Comparator.comparing(ShopType::getSort, Comparator.nullsLast(Comparator.naturalOrder()))
+                    .thenComparing(ShopType::getId, Comparator.nullsLast(Comparator.naturalOrder())));
+        } else {
+            //2. 否则去数据库中查，按顺序从右侧写入Redis，保持sort的顺序
+            types = query().orderByAsc("sort", "id").list();
+            List<String> values = new ArrayList<>(types.size());
+            for (ShopType type : types) {
+                values.add(JSONUtil.toJsonStr(type));
+            }
+            if (!values.isEmpty()) {
+                stringRedisTemplate.execute(new SessionCallback<Object>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Object execute(RedisOperations operations) throws DataAccessException {
+                        //删除和写入在同一个事务中执行，避免多个节点同时重建时重复写入
+                        operations.multi();
+                        operations.delete(CACHE_SHOP_TYPE_KEY);
+                        operations.opsForList().rightPushAll(CACHE_SHOP_TYPE_KEY, values);
+                        return operations.exec();
+                    }
+                });
+            }
+        }
+        //3. 提前序列化响应体，并以响应体的摘要作为ETag
+        List<ShopType> immutableTypes = Collections.unmodifiableList(types);
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(Result.ok(immutableTypes));
+            return new Snapshot(version, immutableTypes, body, ETagUtil.weak(DigestUtil.md5Hex(body)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("商铺类型序列化失败", e);
+        }
+    }
+
+    /**
+     * 不可变的商铺类型快照
+     */
+    @AllArgsConstructor
+    private static class Snapshot {
+        private final String version;
+        private final List<ShopType> types;
+        private final byte[] body;
+        private final String eTag;
     }
 }
@@ -1,21 +1,28 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.annotation.HmdpCacheEvict;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserProfileCache;
 import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
 import static com.hmdp.utils.RedisConstants.USER_SIGN_KEY;
 
 /**
@@ -31,6 +38,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private UserProfileCache userProfileCache;
+
 //    @Override
 //    public Result sign() {
 //        //1. 获取当前用户
@@ -93,4 +103,34 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         }
         return Result.ok(count);
     }
+
+    @Override
+    @HmdpCacheEvict(keyPrefix = CACHE_USER_KEY, key = "#profile.id")
+    public Result updateProfile(UserDTO profile) {
+        if (StrUtil.isBlank(profile.getNickName()) && StrUtil.isBlank(profile.getIcon())) {
+            return Result.fail("昵称和头像不能都为空！");
+        }
+        //1. 只修改昵称和头像，Redis缓存的失效事件由切面在同一事务中写入发件箱
+        boolean updated = update()
+                .set(StrUtil.isNotBlank(profile.getNickName()), "nick_name", profile.getNickName())
+                .set(StrUtil.isNotBlank(profile.getIcon()), "icon", profile.getIcon())
+                .eq("id", profile.getId())
+                .update();
+        if (!updated) {
+            return Result.fail("用户不存在！");
+        }
+        //2. 事务提交后立即清除各节点的本地缓存
+        Long id = profile.getId();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    userProfileCache.publishEvict(id);
+                }
+            });
+        } else {
+            userProfileCache.publishEvict(id);
+        }
+        return Result.ok();
+    }
 }
@@ -1,12 +1,16 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.annotation.HmdpCacheEvict;
+import com.hmdp.annotation.HmdpCacheable;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -14,7 +18,9 @@ import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_SHOP_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
@@ -36,14 +42,57 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
-        // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(listVoucherOfShop(shopId));
+    }
+
+    @Override
+    public List<Voucher> listVoucherOfShop(Long shopId) {
+        // 通过代理对象查询缓存中的优惠券信息
+        List<Voucher> vouchers = ((IVoucherService) AopContext.currentProxy()).queryVoucherListOfShop(shopId);
+        // 秒杀券的库存以Redis为准
+        overlaySeckillStock(vouchers);
+        return vouchers;
+    }
+
+    @Override
+    @HmdpCacheable(keyPrefix = CACHE_VOUCHER_SHOP_KEY)
+    public List<Voucher> queryVoucherListOfShop(Long shopId) {
+        return getBaseMapper().queryVoucherOfShop(shopId);
+    }
+
+    @Override
+    @HmdpCacheEvict(keyPrefix = CACHE_VOUCHER_SHOP_KEY, key = "#voucher.shopId")
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+    }
+
+    /**
+     * 一次MGET读取所有秒杀券的实时库存，覆盖数据库中的库存
+     */
+    private void overlaySeckillStock(List<Voucher> vouchers) {
+        List<Voucher> seckillVouchers = vouchers.stream()
+                .filter(v -> v.getStock() != null)
+                .collect(Collectors.toList());
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        List<String> keys = seckillVouchers.stream()
+                .map(v -> SECKILL_STOCK_KEY + v.getId())
+                .collect(Collectors.toList());
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (stocks == null) {
+            return;
+        }
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            if (StrUtil.isNotBlank(stocks.get(i))) {
+                seckillVouchers.get(i).setStock(Integer.valueOf(stocks.get(i)));
+            }
+        }
     }
 
     @Override
     @Transactional
+    @HmdpCacheEvict(keyPrefix = CACHE_VOUCHER_SHOP_KEY, key = "#voucher.shopId")
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
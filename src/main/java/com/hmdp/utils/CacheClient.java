@@ -2,18 +2,42 @@ package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSON;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.RedisData;
+import com.hmdp.entity.Versioned;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -24,28 +48,93 @@ public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
+    /**
+     * 缓存值的头部格式为 版本号|标志位，后面跟着数据，标志位表示数据是原始json还是压缩后的json
+     */
+    private static final byte VERSION_SEPARATOR = '|';
+    private static final byte FLAG_JSON = 'j';
+    private static final byte FLAG_DEFLATE = 'z';
+
+    /**
+     * 每个线程复用自己的压缩器，避免每次都分配本地内存
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private static final RedisSerializer<Long> LONG_SERIALIZER = new GenericToStringSerializer<>(Long.class);
+
+    /**
+     * json超过该字节数才压缩，小数据压缩收益不抵CPU开销
+     */
+    @Value("${hmdp.cache.compress-threshold:1024}")
+    private int compressThreshold;
+
+    private final LongAdder compressCount = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder decompressCount = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    private static final DefaultRedisScript<Long> CACHE_SET_SCRIPT;
+
+    static {
+        CACHE_SET_SCRIPT = new DefaultRedisScript<>();
+        CACHE_SET_SCRIPT.setLocation(new ClassPathResource("cache_set.lua"));
+        CACHE_SET_SCRIPT.setResultType(Long.class);
+    }
+
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        writeIfNewer(key, versionOf(value), JSONUtil.toJsonStr(value), timeUnit.toMillis(time));
     }
 
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit timeUnit) {
         RedisData<Object> redisData = new RedisData<>();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        writeIfNewer(key, versionOf(value), JSONUtil.toJsonStr(redisData), 0L);
+    }
+
+    /**
+     * 管道批量写入，每个key同样经过版本号比较，一次往返写入整批数据
+     */
+    public void setBatch(Map<String, ?> values, Long time, TimeUnit timeUnit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        byte[] ttl = String.valueOf(timeUnit.toMillis(time)).getBytes(StandardCharsets.UTF_8);
+        byte[] sha = CACHE_SET_SCRIPT.getSha1().getBytes(StandardCharsets.UTF_8);
+        //管道中无法处理NOSCRIPT错误，先确保脚本已加载
+        stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(CACHE_SET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                long version = versionOf(entry.getValue());
+                connection.scriptingCommands().evalSha(sha, ReturnType.INTEGER, 1,
+                        entry.getKey().getBytes(StandardCharsets.UTF_8),
+                        String.valueOf(version).getBytes(StandardCharsets.UTF_8),
+                        encode(version, JSONUtil.toJsonStr(entry.getValue())),
+                        ttl);
+            }
+            return null;
+        });
     }
 
-    public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+    }
+
+    public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Type type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
         //先从Redis中查，这里的常量值是固定的前缀 + 店铺id
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String json = read(key);
         //如果不为空（查询到了），则转为R类型直接返回
         if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, type);
+            return JSONUtil.toBean(json, type, false);
         }
         if (json != null) {
             return null;
@@ -57,25 +146,80 @@ public class CacheClient {
             stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
-        //查到了则转为json字符串
-        String jsonStr = JSONUtil.toJsonStr(r);
-        //并存入redis，设置TTL
-        this.set(key, jsonStr, time, timeUnit);
+        //查到了则存入redis，设置TTL
+        this.set(key, r, time, timeUnit);
         //最终把查询到的商户信息返回给前端
         return r;
     }
 
-    public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+    /**
+     * 批量查询，一次MGET读取整批缓存，未命中的id一次查库，再管道批量写回。
+     * 结果按传入id的顺序返回，不存在的数据被跳过
+     */
+    public <R, ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                     Function<List<ID>, List<R>> dbFallback, Function<R, ID> idGetter,
+                                                     Long time, TimeUnit timeUnit) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //1. MGET批量读取缓存
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            keys[i] = (keyPrefix + ids.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+        //2. 解析命中的数据，空值标记直接跳过，记录未命中的id
+        Map<ID, R> found = new HashMap<>(ids.size());
+        List<ID> missing = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = decode(values == null ? null : values.get(i));
+            if (StrUtil.isNotBlank(json)) {
+                found.put(ids.get(i), JSONUtil.toBean(json, type));
+            } else if (json == null) {
+                missing.add(ids.get(i));
+            }
+        }
+        //3. 未命中的id一次查库，查到的批量写回，查不到的写入空值
+        if (!missing.isEmpty()) {
+            Map<String, R> loaded = new HashMap<>(missing.size());
+            for (R r : dbFallback.apply(missing)) {
+                found.put(idGetter.apply(r), r);
+                loaded.put(keyPrefix + idGetter.apply(r), r);
+            }
+            setBatch(loaded, time, timeUnit);
+            List<ID> absent = missing.stream().filter(id -> !found.containsKey(id)).collect(Collectors.toList());
+            if (!absent.isEmpty()) {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (ID id : absent) {
+                        connection.stringCommands().setEx((keyPrefix + id).getBytes(StandardCharsets.UTF_8),
+                                TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), new byte[0]);
+                    }
+                    return null;
+                });
+            }
+        }
+        //4. 按传入的顺序返回
+        List<R> result = new ArrayList<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Type type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
         //1. 从redis中查询商铺缓存
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String json = read(key);
         //2. 如果未命中，则返回空
         if (StrUtil.isBlank(json)) {
             return null;
         }
         //3. 命中，将json反序列化为对象
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        R r = JSONUtil.toBean((JSON) redisData.getData(), type, false);
         LocalDateTime expireTime = redisData.getExpireTime();
         //4. 判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
@@ -83,11 +227,11 @@ public class CacheClient {
             return r;
         }
         //6. 过期，尝试获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
+        String lockKey = LOCK_CACHE_KEY + key;
         boolean flag = tryLock(lockKey);
         //7. 获取到了锁
         if (flag) {
-            //8. 开启独立线程
+            //8. 开启独立线程，重建时版本号更旧的数据不会覆盖其它节点刚写入的新数据
             CACHE_REBUILD_EXECUTOR.submit(() -> {
                 try {
                     R tmp = dbFallback.apply(id);
@@ -105,19 +249,19 @@ public class CacheClient {
         return r;
     }
 
-    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Type type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
         //先从Redis中查，这里的常量值是固定的前缀 + 店铺id
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String json = read(key);
         //如果不为空（查询到了），则转为Shop类型直接返回
         if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, type);
+            return JSONUtil.toBean(json, type, false);
         }
         if (json != null) {
             return null;
         }
         R r = null;
-        String lockKey = LOCK_SHOP_KEY + id;
+        String lockKey = LOCK_CACHE_KEY + key;
         try {
             //否则去数据库中查
             boolean flag = tryLock(lockKey);
@@ -141,6 +285,175 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 只读取缓存头部的版本号，不传输和解析数据，未命中或没有版本号时返回null
+     */
+    public Long readVersion(String key) {
+        //版本号最长19位，加上分隔符最多20个字节
+        byte[] head = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().getRange(key.getBytes(StandardCharsets.UTF_8), 0, 19));
+        if (head == null || head.length == 0 || !Character.isDigit(head[0])) {
+            return null;
+        }
+        int end = indexOf(head, VERSION_SEPARATOR);
+        if (end < 0) {
+            return null;
+        }
+        return Long.valueOf(new String(head, 0, end, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 读取缓存并去掉版本号头部，空值标记原样返回，未命中返回null
+     */
+    private String read(String key) {
+        byte[] raw = stringRedisTemplate.execute(
+                (RedisCallback<byte[]>) connection -> connection.get(key.getBytes(StandardCharsets.UTF_8)));
+        return decode(raw);
+    }
+
+    private String decode(byte[] raw) {
+        if (raw == null) {
+            return null;
+        }
+        if (raw.length == 0 || !Character.isDigit(raw[0])) {
+            //空值标记，或没有版本号的旧数据
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+        int offset = indexOf(raw, VERSION_SEPARATOR) + 1;
+        if (raw[offset] == FLAG_DEFLATE) {
+            return inflate(raw, offset + 1);
+        }
+        if (raw[offset] == FLAG_JSON) {
+            offset++;
+        }
+        return new String(raw, offset, raw.length - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 比较版本号后写入，缓存中已有更新版本时放弃写入
+     */
+    private void writeIfNewer(String key, long version, String json, long ttlMillis) {
+        Long result = stringRedisTemplate.execute(CACHE_SET_SCRIPT, RedisSerializer.byteArray(), LONG_SERIALIZER,
+                Collections.singletonList(key),
+                String.valueOf(version).getBytes(StandardCharsets.UTF_8),
+                encode(version, json),
+                String.valueOf(ttlMillis).getBytes(StandardCharsets.UTF_8));
+        if (result != null && result == 0L) {
+            log.debug("缓存中已有更新的版本，放弃写入，key：{}，version：{}", key, version);
+        }
+    }
+
+    private byte[] encode(long version, String json) {
+        byte[] header = (version + "|").getBytes(StandardCharsets.UTF_8);
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        byte flag = FLAG_JSON;
+        if (payload.length >= compressThreshold) {
+            byte[] compressed = deflate(payload);
+            //压缩后反而变大时保留原始数据
+            if (compressed.length < payload.length) {
+                payload = compressed;
+                flag = FLAG_DEFLATE;
+            }
+        }
+        byte[] value = new byte[header.length + 1 + payload.length];
+        System.arraycopy(header, 0, value, 0, header.length);
+        value[header.length] = flag;
+        System.arraycopy(payload, 0, value, header.length + 1, payload.length);
+        return value;
+    }
+
+    private byte[] deflate(byte[] data) {
+        long begin = System.nanoTime();
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        byte[] compressed = out.toByteArray();
+        compressNanos.add(System.nanoTime() - begin);
+        compressCount.increment();
+        rawBytes.add(data.length);
+        storedBytes.add(Math.min(compressed.length, data.length));
+        return compressed;
+    }
+
+    private String inflate(byte[] data, int offset) {
+        long begin = System.nanoTime();
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, offset, data.length - offset);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((data.length - offset) * 3);
+        byte[] buffer = new byte[1024];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("缓存数据不完整");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存数据解压失败", e);
+        }
+        decompressNanos.add(System.nanoTime() - begin);
+        decompressCount.increment();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] data, byte b) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 定时输出压缩统计，用于调整压缩阈值
+     */
+    @Scheduled(fixedRate = 300000L)
+    public void logCompressionStats() {
+        long compressed = compressCount.sum();
+        if (compressed == 0) {
+            return;
+        }
+        long decompressed = decompressCount.sum();
+        log.info("缓存压缩统计：阈值 {} 字节，压缩 {} 次，原始 {} 字节，存储 {} 字节，节省 {} 字节，平均压缩耗时 {} 微秒，解压 {} 次，平均解压耗时 {} 微秒",
+                compressThreshold, compressed, rawBytes.sum(), storedBytes.sum(), rawBytes.sum() - storedBytes.sum(),
+                compressNanos.sum() / compressed / 1000,
+                decompressed, decompressed == 0 ? 0 : decompressNanos.sum() / decompressed / 1000);
+    }
+
+    /**
+     * 以实体的版本号或更新时间作为版本号，都没有的对象版本号为0，集合取其中最大的版本号
+     */
+    public static long versionOf(Object value) {
+        if (value instanceof Collection) {
+            long version = 0L;
+            for (Object element : (Collection<?>) value) {
+                version = Math.max(version, versionOf(element));
+            }
+            return version;
+        }
+        if (value instanceof Versioned) {
+            Long version = ((Versioned) value).getVersion();
+            if (version != null && version > 0) {
+                return version;
+            }
+            LocalDateTime updateTime = ((Versioned) value).getUpdateTime();
+            if (updateTime != null) {
+                return updateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+        }
+        return 0L;
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -149,4 +462,4 @@ public class CacheClient {
     private void unlock(String key) {
         stringRedisTemplate.delete(key);
     }
-}
\ No newline at end of file
+}
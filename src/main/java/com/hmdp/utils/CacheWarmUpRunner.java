@@ -0,0 +1,221 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热。
+ * 启动时按热度预热商铺、商铺类型、笔记和秒杀库存，预热完成前就绪状态为 REFUSING_TRAFFIC；
+ * 秒杀开始前再预热一次即将开始的秒杀券及其商铺、商铺的优惠券列表
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IBlogService blogService;
+
+    /**
+     * 预热的商铺数量
+     */
+    @Value("${hmdp.cache.warm-up.top-shops:1000}")
+    private int topShops;
+
+    /**
+     * 预热的笔记数量
+     */
+    @Value("${hmdp.cache.warm-up.top-blogs:500}")
+    private int topBlogs;
+
+    /**
+     * 每批写入的key数量
+     */
+    @Value("${hmdp.cache.warm-up.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 每秒最多写入的key数量，避免预热流量压垮刚恢复的Redis
+     */
+    @Value("${hmdp.cache.warm-up.max-keys-per-second:2000}")
+    private int maxKeysPerSecond;
+
+    /**
+     * 提前多少分钟预热即将开始的秒杀
+     */
+    @Value("${hmdp.cache.warm-up.seckill-ahead-minutes:10}")
+    private long seckillAheadMinutes;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        AvailabilityChangeEvent.publish(applicationContext, ReadinessState.REFUSING_TRAFFIC);
+        long begin = System.currentTimeMillis();
+        try {
+            //1. 按评论数从高到低预热商铺
+            List<Shop> shops = shopService.query()
+                    .orderByDesc("comments")
+                    .last("LIMIT " + topShops)
+                    .list();
+            warmShops(shops);
+            //2. 预热商铺类型
+            shopTypeService.queryList();
+            //3. 预热未结束的秒杀券库存
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("end_time", LocalDateTime.now())
+                    .list();
+            warmSeckillStock(vouchers);
+            //4. 按点赞数从高到低预热笔记
+            List<Blog> blogs = blogService.query()
+                    .orderByDesc("liked")
+                    .last("LIMIT " + topBlogs)
+                    .list();
+            warmBlogs(blogs);
+            //5. 热门笔记排行榜不存在时全量构建，之后由点赞脚本增量更新
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+                blogService.rebuildHotBlog();
+            }
+            log.info("缓存预热完成，商铺 {} 个，秒杀券 {} 个，笔记 {} 个，耗时 {} ms",
+                    shops.size(), vouchers.size(), blogs.size(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            //预热失败不影响服务启动，缓存会在查询时按需重建
+            log.error("缓存预热失败", e);
+        } finally {
+            AvailabilityChangeEvent.publish(applicationContext, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+    }
+
+    /**
+     * 在秒杀开始前预热秒杀券库存和对应的商铺
+     */
+    @Scheduled(fixedRate = 60000L)
+    public void warmUpcomingSeckill() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .between("begin_time", now, now.plusMinutes(seckillAheadMinutes))
+                    .list();
+            if (vouchers.isEmpty()) {
+                return;
+            }
+            warmSeckillStock(vouchers);
+            List<Long> voucherIds = vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+            Set<Long> shopIds = voucherService.listByIds(voucherIds).stream()
+                    .map(Voucher::getShopId)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet());
+            warmShops(shopService.listByIds(shopIds));
+            //通过代理查询一次，缓存秒杀券所在商铺的优惠券列表
+            shopIds.forEach(voucherService::queryVoucherListOfShop);
+        } catch (Exception e) {
+            log.error("秒杀预热失败", e);
+        }
+    }
+
+    private void warmShops(List<Shop> shops) {
+        for (int from = 0; from < shops.size(); from += batchSize) {
+            long begin = System.currentTimeMillis();
+            Map<String, Shop> batch = new LinkedHashMap<>();
+            for (Shop shop : shops.subList(from, Math.min(from + batchSize, shops.size()))) {
+                batch.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            cacheClient.setBatch(batch, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            throttle(batch.size(), begin);
+        }
+    }
+
+    private void warmBlogs(List<Blog> blogs) {
+        for (int from = 0; from < blogs.size(); from += batchSize) {
+            long begin = System.currentTimeMillis();
+            Map<String, Blog> batch = new LinkedHashMap<>();
+            for (Blog blog : blogs.subList(from, Math.min(from + batchSize, blogs.size()))) {
+                batch.put(CACHE_BLOG_KEY + blog.getId(), blog);
+            }
+            cacheClient.setBatch(batch, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+            throttle(batch.size(), begin);
+        }
+    }
+
+    private void warmSeckillStock(List<SeckillVoucher> vouchers) {
+        for (int from = 0; from < vouchers.size(); from += batchSize) {
+            long begin = System.currentTimeMillis();
+            List<SeckillVoucher> batch = vouchers.subList(from, Math.min(from + batchSize, vouchers.size()));
+            //库存以Redis为准，只补齐丢失的key，不覆盖已有的库存
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (SeckillVoucher voucher : batch) {
+                    connection.stringCommands().setNX(
+                            (SECKILL_STOCK_KEY + voucher.getVoucherId()).getBytes(StandardCharsets.UTF_8),
+                            voucher.getStock().toString().getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            throttle(batch.size(), begin);
+        }
+    }
+
+    /**
+     * 按每秒最多写入的key数量限速
+     */
+    private void throttle(int written, long begin) {
+        long expectedMillis = written * 1000L / maxKeysPerSecond;
+        long sleepMillis = expectedMillis - (System.currentTimeMillis() - begin);
+        if (sleepMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
+
+/**
+ * 滚动分页的游标，内容是上一页最后一条数据的排序字段和id，对客户端不透明
+ */
+public class CursorUtil {
+
+    private static final String SEPARATOR = ":";
+
+    public static String encode(Object... values) {
+        return Base64.encodeUrlSafe(StrUtil.join(SEPARATOR, values));
+    }
+
+    /**
+     * 解析游标，格式不对时抛出 IllegalArgumentException
+     */
+    public static String[] decode(String cursor, int size) {
+        String[] values;
+        try {
+            values = Base64.decodeStr(cursor).split(SEPARATOR);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("游标无效！", e);
+        }
+        if (values.length != size) {
+            throw new IllegalArgumentException("游标无效！");
+        }
+        return values;
+    }
+}
@@ -0,0 +1,11 @@
+package com.hmdp.utils;
+
+/**
+ * 弱ETag，内容语义相同即可复用，不要求逐字节一致
+ */
+public class ETagUtil {
+
+    public static String weak(Object value) {
+        return "W/\"" + value + "\"";
+    }
+}
@@ -0,0 +1,484 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.service.IFollowService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.FEED_BIG_AUTHOR_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_STREAM_KEY;
+
+/**
+ * 笔记推送到粉丝收件箱。
+ * 发布笔记时只往Redis Stream中写一条消息，由后台线程按页读取粉丝，
+ * 每页粉丝的收件箱用一次Lua脚本批量写入，发布请求不再等待推送完成。
+ * 粉丝数达到阈值的作者不再推送，只写入自己的发件箱，粉丝读取关注流时再合并拉取。
+ * 收件箱写入时按上限裁剪，每次读取关注流时续期，长期不活跃用户的收件箱过期删除，
+ * 推送时跳过不存在的收件箱，用户再次访问时从关注作者的最新笔记重建
+ */
+@Slf4j
+@Component
+public class FeedFanout {
+
+    private static final String GROUP = "g1";
+
+    /**
+     * 每页读取的粉丝数量，也是每次脚本写入的收件箱数量
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * 重建收件箱时写入的占位成员，分数小于0不会被关注流读到，避免没有笔记的用户每次访问都重建
+     */
+    private static final String INBOX_PLACEHOLDER = "0";
+
+    /**
+     * 笔记在收件箱和发件箱中的分数：数据库时钟下create_time的毫秒时间戳。
+     * 推送和重建都用这一个时钟，不受JVM时钟和时区配置的影响
+     */
+    private static final String SCORE_COLUMN = "CAST(UNIX_TIMESTAMP(create_time) * 1000 AS UNSIGNED)";
+
+    /**
+     * 连续失败时的退避上限
+     */
+    private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+    /**
+     * 处理pending-list时连续失败的次数上限
+     */
+    private static final int MAX_PENDING_RETRIES = 10;
+
+    /**
+     * 每次接管的pending消息数量
+     */
+    private static final int CLAIM_BATCH_SIZE = 100;
+
+    private final ExecutorService feedFanoutExecutor = Executors.newSingleThreadExecutor();
+
+    private volatile boolean running = true;
+
+    private static final DefaultRedisScript<Long> FEED_PUSH_SCRIPT;
+
+    static {
+        FEED_PUSH_SCRIPT = new DefaultRedisScript<>();
+        FEED_PUSH_SCRIPT.setLocation(new ClassPathResource("feed_push.lua"));
+        FEED_PUSH_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    /**
+     * 多个节点需要不同的消费者名称，各自的pending-list互不影响，不配置时取进程号@主机名
+     */
+    @Value("${hmdp.feed.consumer:}")
+    private String consumerName;
+
+    @Value("${hmdp.feed.claim-idle-seconds:60}")
+    private long claimIdleSeconds;
+
+    @Value("${hmdp.feed.big-author-threshold:5000}")
+    private int bigAuthorThreshold;
+
+    @Value("${hmdp.feed.outbox-size:1000}")
+    private int outboxSize;
+
+    @Value("${hmdp.feed.inbox-size:500}")
+    private int inboxSize;
+
+    @Value("${hmdp.feed.inactive-days:30}")
+    private long inactiveDays;
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.isBlank(consumerName)) {
+            consumerName = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        //消费者组不存在时创建，已存在时Redis返回BUSYGROUP错误，忽略即可
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(FEED_STREAM_KEY.getBytes(StandardCharsets.UTF_8), GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            log.debug("笔记推送消费者组已存在");
+        }
+        feedFanoutExecutor.submit(new FeedFanoutHandler());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        feedFanoutExecutor.shutdownNow();
+    }
+
+    /**
+     * 发布推送消息，分数取数据库中笔记的create_time，重复推送时保持不变
+     */
+    public void publish(Long blogId, Long authorId) {
+        List<Object> scores = blogMapper.selectObjs(new QueryWrapper<Blog>().select(SCORE_COLUMN).eq("id", blogId));
+        if (scores.isEmpty()) {
+            throw new IllegalStateException("笔记不存在，blogId：" + blogId);
+        }
+        long score = Long.parseLong(scores.get(0).toString());
+        Map<String, String> values = new HashMap<>();
+        values.put("blogId", blogId.toString());
+        values.put("authorId", authorId.toString());
+        values.put("score", String.valueOf(score));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(FEED_STREAM_KEY).ofMap(values));
+    }
+
+    private class FeedFanoutHandler implements Runnable {
+
+        @Override
+        public void run() {
+            int failures = 0;
+            while (running) {
+                try {
+                    //1. 获取队列中的推送消息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.feed >
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(GROUP, consumerName),
+                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(FEED_STREAM_KEY, ReadOffset.lastConsumed()));
+                    failures = 0;
+                    if (records == null || records.isEmpty()) {
+                        continue;
+                    }
+                    //2. 推送完成后再ACK，中途失败的消息留在pending-list中重新推送
+                    handle(records.get(0));
+                } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
+                    log.error("笔记推送异常", e);
+                    //Redis不可用时退避，避免空转刷日志
+                    if (!backoff(++failures)) {
+                        return;
+                    }
+                    handlePendingList();
+                }
+            }
+        }
+    }
+
+    private void handlePendingList() {
+        int failures = 0;
+        while (running) {
+            try {
+                //1. 获取pending-list中的推送消息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.feed 0
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP, consumerName),
+                        StreamReadOptions.empty().count(1),
+                        StreamOffset.create(FEED_STREAM_KEY, ReadOffset.from("0")));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                //2. ZADD是幂等的，重新推送已经写过的收件箱不会产生重复
+                handle(records.get(0));
+                failures = 0;
+            } catch (Exception e) {
+                log.error("处理笔记推送pending-list异常", e);
+                //连续失败时放弃本轮，消息留在pending-list中，下次出错或接管时再处理
+                if (++failures >= MAX_PENDING_RETRIES || !backoff(failures)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 按失败次数指数退避，线程被中断时返回false
+     */
+    private boolean backoff(int failures) {
+        try {
+            Thread.sleep(Math.min(50L << Math.min(failures, 10), MAX_BACKOFF_MILLIS));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 接管其它消费者长时间没有确认的消息，节点宕机或更换消费者名称后，其pending-list中的消息由存活的节点继续推送
+     */
+    @Scheduled(fixedDelay = 30000L)
+    public void claimIdlePending() {
+        try {
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(FEED_STREAM_KEY, GROUP, Range.unbounded(), CLAIM_BATCH_SIZE);
+            Duration minIdle = Duration.ofSeconds(claimIdleSeconds);
+            List<RecordId> ids = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (!consumerName.equals(message.getConsumerName()) && message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                    ids.add(message.getId());
+                }
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+            //XCLAIM后消息进入本节点的pending-list，再按pending-list推送
+            byte[] key = FEED_STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+            List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                    connection.streamCommands().xClaimJustId(key, GROUP, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            handlePendingList();
+            log.info("接管笔记推送消息 {} 条", claimed.size());
+        } catch (Exception e) {
+            log.error("接管笔记推送消息失败", e);
+        }
+    }
+
+    private void handle(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> values = record.getValue();
+        Long authorId = Long.valueOf(values.get("authorId").toString());
+        String blogId = values.get("blogId").toString();
+        long score = Long.parseLong(values.get("score").toString());
+        if (isBigAuthor(authorId)) {
+            writeOutbox(authorId, blogId.getBytes(StandardCharsets.UTF_8), score);
+        } else {
+            fanout(authorId, blogId, score);
+        }
+        stringRedisTemplate.opsForStream().acknowledge(FEED_STREAM_KEY, GROUP, record.getId());
+    }
+
+    /**
+     * 作者一旦成为大V就一直保留在集合中，否则粉丝会读不到发件箱中已有的笔记
+     */
+    private boolean isBigAuthor(Long authorId) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FEED_BIG_AUTHOR_KEY, authorId.toString()))) {
+            return true;
+        }
+        //按(follow_user_id, user_id)索引统计粉丝数
+        int fans = followService.query().eq("follow_user_id", authorId).count();
+        if (fans < bigAuthorThreshold) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHOR_KEY, authorId.toString());
+        return true;
+    }
+
+    /**
+     * 写入作者发件箱，只保留最新的outboxSize条
+     */
+    private void writeOutbox(Long authorId, byte[] member, double score) {
+        byte[] key = (FEED_OUTBOX_KEY + authorId).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zAdd(key, score, member);
+            connection.zSetCommands().zRemRange(key, 0, -outboxSize - 1);
+            return null;
+        });
+    }
+
+    /**
+     * 按user_id翻页读取粉丝，(follow_user_id, user_id)索引覆盖查询，不回表也不会越翻越慢
+     */
+    private void fanout(Long authorId, String blogId, long score) {
+        long lastUserId = 0;
+        int total = 0;
+        while (true) {
+            List<Follow> follows = followService.query()
+                    .select("user_id")
+                    .eq("follow_user_id", authorId)
+                    .gt("user_id", lastUserId)
+                    .orderByAsc("user_id")
+                    .last("limit " + BATCH_SIZE)
+                    .list();
+            if (follows.isEmpty()) {
+                break;
+            }
+            //一页粉丝的收件箱在一次脚本调用中写入并裁剪
+            List<String> keys = follows.stream().map(follow -> FEED_KEY + follow.getUserId()).collect(Collectors.toList());
+            stringRedisTemplate.execute(FEED_PUSH_SCRIPT, keys, blogId, String.valueOf(score), String.valueOf(inboxSize));
+            total += follows.size();
+            lastUserId = follows.get(follows.size() - 1).getUserId();
+            if (follows.size() < BATCH_SIZE) {
+                break;
+            }
+        }
+        log.debug("笔记推送完成，作者：{}，粉丝数：{}", authorId, total);
+    }
+
+    /**
+     * 读取关注流前调用，收件箱已过期时重建，否则续期
+     */
+    public void touchInbox(Long userId) {
+        String key = FEED_KEY + userId;
+        Boolean renewed = stringRedisTemplate.expire(key, inactiveDays, TimeUnit.DAYS);
+        if (Boolean.TRUE.equals(renewed)) {
+            return;
+        }
+        rebuildInbox(userId);
+    }
+
+    /**
+     * 从关注作者的最新笔记重建收件箱，大V的笔记在读取时从发件箱拉取，只补充发件箱中已经没有的更早的笔记
+     */
+    private void rebuildInbox(Long userId) {
+        //1. 先创建只有占位成员的收件箱，重建期间发布的笔记会直接推送进来，不会因为收件箱不存在而丢失
+        String key = FEED_KEY + userId;
+        stringRedisTemplate.opsForZSet().add(key, INBOX_PLACEHOLDER, -1D);
+        stringRedisTemplate.expire(key, inactiveDays, TimeUnit.DAYS);
+        //2. 查询关注的作者，大V单独处理
+        List<Long> authorIds = followService.query()
+                .select("follow_user_id")
+                .eq("user_id", userId)
+                .list()
+                .stream()
+                .map(Follow::getFollowUserId)
+                .collect(Collectors.toList());
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect("follows:" + userId, FEED_BIG_AUTHOR_KEY);
+        List<Long> bigAuthorIds = new ArrayList<>();
+        if (bigAuthors != null && !bigAuthors.isEmpty()) {
+            authorIds.removeIf(id -> bigAuthors.contains(id.toString()));
+            bigAuthors.forEach(id -> bigAuthorIds.add(Long.valueOf(id)));
+        }
+        //2.1 大V发件箱中最早的笔记分数，成为大V之前和已被裁剪的笔记都比它早
+        List<Object> oldest = bigAuthorIds.isEmpty() ? Collections.emptyList()
+                : stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long authorId : bigAuthorIds) {
+                connection.zSetCommands().zRangeWithScores((FEED_OUTBOX_KEY + authorId).getBytes(StandardCharsets.UTF_8), 0, 0);
+            }
+            return null;
+        });
+        //3. 查询普通作者的最新笔记，以及大V发件箱中没有的更早的笔记，共取最新的inboxSize条
+        List<Map<String, Object>> blogs = Collections.emptyList();
+        if (!authorIds.isEmpty() || !bigAuthorIds.isEmpty()) {
+            QueryWrapper<Blog> wrapper = new QueryWrapper<Blog>().select("id", SCORE_COLUMN + " AS score");
+            wrapper.and(w -> {
+                if (!authorIds.isEmpty()) {
+                    w.in("user_id", authorIds);
+                }
+                for (int i = 0; i < bigAuthorIds.size(); i++) {
+                    Long authorId = bigAuthorIds.get(i);
+                    @SuppressWarnings("unchecked")
+                    Set<ZSetOperations.TypedTuple<String>> head = (Set<ZSetOperations.TypedTuple<String>>) oldest.get(i);
+                    Double before = head == null || head.isEmpty() ? null : head.iterator().next().getScore();
+                    java.util.function.Consumer<QueryWrapper<Blog>> older = o -> o.eq("user_id", authorId)
+                            .apply(before != null, "create_time < FROM_UNIXTIME({0} / 1000)", before == null ? 0 : before.longValue());
+                    if (authorIds.isEmpty() && i == 0) {
+                        w.nested(older);
+                    } else {
+                        w.or(older);
+                    }
+                }
+            });
+            blogs = blogMapper.selectMaps(wrapper.orderByDesc("create_time").last("limit " + inboxSize));
+        }
+        //4. 写入收件箱，ZADD是幂等的，和重建期间的推送重复也没有影响
+        if (!blogs.isEmpty()) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(blogs.size());
+            for (Map<String, Object> blog : blogs) {
+                tuples.add(new DefaultTypedTuple<>(blog.get("id").toString(), Double.valueOf(blog.get("score").toString())));
+            }
+            stringRedisTemplate.opsForZSet().add(key, tuples);
+        }
+        log.debug("收件箱重建完成，用户：{}，笔记数：{}", userId, blogs.size());
+    }
+
+    /**
+     * 给没有过期时间的收件箱补上过期时间，兼容上线前写入的收件箱，每天凌晨执行
+     */
+    @Scheduled(cron = "0 0 5 * * ?")
+    public void sweepInboxes() {
+        long begin = System.currentTimeMillis();
+        ScanOptions options = ScanOptions.scanOptions().match(FEED_KEY + "[0-9]*").count(BATCH_SIZE).build();
+        Integer swept = stringRedisTemplate.execute((RedisCallback<Integer>) connection -> {
+            int total = 0;
+            try (Cursor<byte[]> cursor = connection.keyCommands().scan(options)) {
+                List<byte[]> keys = new ArrayList<>(BATCH_SIZE);
+                while (cursor.hasNext()) {
+                    keys.add(cursor.next());
+                    if (keys.size() == BATCH_SIZE || !cursor.hasNext()) {
+                        total += expireIfPersistent(keys);
+                        keys.clear();
+                    }
+                }
+            } catch (Exception e) {
+                log.error("收件箱清理失败", e);
+            }
+            return total;
+        });
+        log.info("收件箱清理完成，补充过期时间 {} 个，耗时 {} ms", swept, System.currentTimeMillis() - begin);
+    }
+
+    private int expireIfPersistent(List<byte[]> keys) {
+        //1. 管道批量查询剩余时间，-1表示没有过期时间
+        List<Object> ttls = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] key : keys) {
+                connection.keyCommands().ttl(key);
+            }
+            return null;
+        });
+        List<byte[]> persistent = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (Long.valueOf(-1).equals(ttls.get(i))) {
+                persistent.add(keys.get(i));
+            }
+        }
+        if (persistent.isEmpty()) {
+            return 0;
+        }
+        //2. 管道批量设置过期时间
+        long seconds = TimeUnit.DAYS.toSeconds(inactiveDays);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] key : persistent) {
+                connection.keyCommands().expire(key, seconds);
+            }
+            return null;
+        });
+        return persistent.size();
+    }
+}
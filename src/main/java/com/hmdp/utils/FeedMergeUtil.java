@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.ScrollResult;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * 关注流的k路归并：收件箱和关注的大V的发件箱都是按分数倒序的数据源，合并成一个流后按滚动分页取出一页
+ */
+public class FeedMergeUtil {
+
+    /**
+     * 合并各数据源中分数不大于max的笔记，跳过offset条后取一页。
+     * 每个数据源需要按ZREVRANGEBYSCORE的顺序提供至少offset + pageSize条
+     *
+     * @param sources  各数据源，分数倒序，分数相同时按成员倒序
+     * @param max      上一页的最小时间戳
+     * @param offset   上一页中与最小时间戳相同的笔记数量
+     * @param pageSize 每页的笔记数量
+     * @return list为这一页的笔记id，minTime和offset为下一页的查询参数，没有数据时list为空
+     */
+    public static ScrollResult merge(Collection<? extends Collection<ZSetOperations.TypedTuple<String>>> sources,
+                                     long max, int offset, int pageSize) {
+        //1. 按时间戳倒序k路归并，时间戳相同时按id倒序，和ZREVRANGEBYSCORE的顺序一致
+        PriorityQueue<FeedCursor> heap = new PriorityQueue<>();
+        for (Collection<ZSetOperations.TypedTuple<String>> source : sources) {
+            Iterator<ZSetOperations.TypedTuple<String>> it = source.iterator();
+            if (it.hasNext()) {
+                heap.add(new FeedCursor(it));
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> typeTuples = new ArrayList<>(pageSize);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while (!heap.isEmpty() && typeTuples.size() < pageSize) {
+            FeedCursor cursor = heap.poll();
+            ZSetOperations.TypedTuple<String> head = cursor.head;
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+            //作者成为大V前后的笔记可能分别在收件箱和发件箱中，去重
+            if (!seen.add(head.getValue())) {
+                continue;
+            }
+            //offset是合并后整个流中的偏移量
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            typeTuples.add(head);
+        }
+        //2. 解析数据，blogId、minTime（时间戳）、offset
+        List<Long> ids = new ArrayList<>(typeTuples.size());
+        long minTime = 0;
+        int os = 1;
+        for (ZSetOperations.TypedTuple<String> typeTuple : typeTuples) {
+            //2.1 获取id
+            ids.add(Long.valueOf(typeTuple.getValue()));
+            //2.2 获取score（时间戳）
+            long time = typeTuple.getScore().longValue();
+            if (time == minTime) {
+                os++;
+            } else {
+                minTime = time;
+                os = 1;
+            }
+        }
+        //2.3 整页的时间戳都和上一页的最小时间戳相同时，偏移量要累加上一页的偏移量
+        if (minTime == max) {
+            os += offset;
+        }
+        ScrollResult r = new ScrollResult();
+        r.setList(ids);
+        r.setMinTime(minTime);
+        r.setOffset(os);
+        return r;
+    }
+
+    /**
+     * k路归并中一个数据源的读取位置
+     */
+    private static class FeedCursor implements Comparable<FeedCursor> {
+        private final Iterator<ZSetOperations.TypedTuple<String>> it;
+        private ZSetOperations.TypedTuple<String> head;
+
+        FeedCursor(Iterator<ZSetOperations.TypedTuple<String>> it) {
+            this.it = it;
+            this.head = it.next();
+        }
+
+        boolean advance() {
+            if (!it.hasNext()) {
+                return false;
+            }
+            head = it.next();
+            return true;
+        }
+
+        @Override
+        public int compareTo(FeedCursor o) {
+            int c = Double.compare(o.head.getScore(), head.getScore());
+            return c != 0 ? c : o.head.getValue().compareTo(head.getValue());
+        }
+    }
+}
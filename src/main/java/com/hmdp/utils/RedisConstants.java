@@ -10,14 +10,34 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type:";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shop-type:version";
+    public static final String CACHE_VOUCHER_SHOP_KEY = "cache:voucher:shop:";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
 
+    public static final String LOCK_CACHE_KEY = "lock:";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_COUNT_KEY = "blog:liked:count";
+    public static final String BLOG_LIKE_DELTA_KEY = "blog:like:delta";
+    public static final String LOCK_BLOG_LIKE_FLUSH_KEY = "lock:blog:like:flush";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String LOCK_BLOG_HOT_REBUILD_KEY = "lock:blog:hot:rebuild";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_STREAM_KEY = "stream.feed";
+    public static final String FEED_OUTBOX_KEY = "feed:out:";
+    public static final String FEED_BIG_AUTHOR_KEY = "feed:big:authors";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_CHANGE_TOPIC = "topic:shop:change";
+    public static final String USER_CHANGE_TOPIC = "topic:user:change";
+    public static final String SHOP_RANK_KEY = "shop:rank:";
+    public static final String SHOP_REBUILD_KEY = "shop:rebuild:";
+    public static final String LOCK_SHOP_REBUILD_KEY = "lock:shop:rebuild:";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存推送。
+ * 每个节点每个周期只用一次MGET读取所有被订阅的秒杀券库存，库存变化时推送给本节点的所有订阅者，
+ * Redis的压力与观看人数无关；连接由Servlet异步请求承载，不占用请求线程。
+ * 定时任务只负责读取库存并登记待推送的值，写出由独立的有界线程池完成，慢客户端不会拖住定时任务线程；
+ * 每个订阅者同一时间最多只有一个写出任务，积压时只推送最新的库存
+ */
+@Slf4j
+@Component
+public class SeckillStockBroadcaster {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 连接的超时时间，超时后客户端会自动重连
+     */
+    @Value("${hmdp.seckill.stock-stream.timeout-millis:600000}")
+    private long timeoutMillis;
+
+    /**
+     * 本节点最多同时保持的订阅数，超过后拒绝新的订阅
+     */
+    @Value("${hmdp.seckill.stock-stream.max-subscribers:10000}")
+    private int maxSubscribers;
+
+    /**
+     * 写出线程数
+     */
+    @Value("${hmdp.seckill.stock-stream.send-threads:4}")
+    private int sendThreads;
+
+    /**
+     * 写出线程池，队列长度等于最大订阅数，每个订阅者最多占一个位置
+     */
+    private ThreadPoolExecutor sendExecutor;
+
+    /**
+     * voucherId -> 订阅者
+     */
+    private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * voucherId -> 上一次推送的库存，只在库存变化时推送
+     */
+    private final Map<Long, String> lastStocks = new ConcurrentHashMap<>();
+
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    @PostConstruct
+    private void init() {
+        sendExecutor = new ThreadPoolExecutor(sendThreads, sendThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxSubscribers), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        sendExecutor.shutdownNow();
+    }
+
+    /**
+     * 订阅秒杀券库存，订阅数已满时返回null
+     */
+    public SseEmitter subscribe(Long voucherId) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(voucherId, emitter);
+        subscribers.computeIfAbsent(voucherId, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(e -> unsubscribe(subscriber));
+        //已经有其它人订阅时，先把最近一次的库存发给新的订阅者
+        String stock = lastStocks.get(voucherId);
+        if (stock != null) {
+            subscriber.offer(stock);
+        }
+        return emitter;
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        if (!subscriber.closed.compareAndSet(false, true)) {
+            return;
+        }
+        subscriberCount.decrementAndGet();
+        subscribers.computeIfPresent(subscriber.voucherId, (k, set) -> {
+            set.remove(subscriber);
+            if (set.isEmpty()) {
+                lastStocks.remove(subscriber.voucherId);
+                return null;
+            }
+            return set;
+        });
+    }
+
+    @Scheduled(fixedRateString = "${hmdp.seckill.stock-stream.tick-millis:500}")
+    public void broadcast() {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        try {
+            //1. 一次MGET读取所有被订阅的秒杀券库存
+            List<Long> voucherIds = new ArrayList<>(subscribers.keySet());
+            List<String> keys = voucherIds.stream().map(id -> SECKILL_STOCK_KEY + id).collect(Collectors.toList());
+            List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+            if (stocks == null) {
+                return;
+            }
+            //2. 库存有变化的登记给所有订阅者，由写出线程池推送，这里不做任何阻塞的写操作
+            for (int i = 0; i < voucherIds.size(); i++) {
+                Long voucherId = voucherIds.get(i);
+                String stock = stocks.get(i);
+                if (stock == null || Objects.equals(stock, lastStocks.put(voucherId, stock))) {
+                    continue;
+                }
+                Set<Subscriber> set = subscribers.get(voucherId);
+                if (set != null) {
+                    set.forEach(subscriber -> subscriber.offer(stock));
+                }
+            }
+        } catch (Exception e) {
+            log.error("秒杀库存推送失败", e);
+        }
+    }
+
+    /**
+     * 一个订阅连接，pending中只保留最新一次待推送的库存
+     */
+    private class Subscriber {
+        private final Long voucherId;
+        private final SseEmitter emitter;
+        private final AtomicReference<String> pending = new AtomicReference<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Subscriber(Long voucherId, SseEmitter emitter) {
+            this.voucherId = voucherId;
+            this.emitter = emitter;
+        }
+
+        void offer(String stock) {
+            pending.set(stock);
+            schedule();
+        }
+
+        private void schedule() {
+            //已有写出任务在排队或执行时，由该任务顺带推送最新的值
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                sendExecutor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                //写出线程池已满，断开连接，客户端重连后会收到最新的库存
+                scheduled.set(false);
+                close(e);
+            }
+        }
+
+        private void drain() {
+            try {
+                String stock;
+                while (!closed.get() && (stock = pending.getAndSet(null)) != null) {
+                    emitter.send(SseEmitter.event().name("stock").data(stock));
+                }
+            } catch (IOException | IllegalStateException e) {
+                //客户端已断开，移除订阅
+                close(e);
+            } finally {
+                scheduled.set(false);
+            }
+            //释放标记前又有新的值登记进来时，重新提交
+            if (!closed.get() && pending.get() != null) {
+                schedule();
+            }
+        }
+
+        private void close(Exception e) {
+            unsubscribe(this);
+            try {
+                emitter.completeWithError(e);
+            } catch (IllegalStateException ignored) {
+                //连接已经结束
+            }
+        }
+    }
+}
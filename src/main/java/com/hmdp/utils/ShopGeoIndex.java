@@ -0,0 +1,329 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SHOP_CHANGE_TOPIC;
+
+/**
+ * 每个商铺类型一份的本地地理索引，附近商铺查询不再需要访问Redis。
+ * 经纬度按固定大小的网格分桶，桶内数据存放在基本类型数组中，查询时从中心格子逐圈向外扩展。
+ * 启动时从数据库加载，之后通过商铺变更消息增量更新，每次变更只重建对应类型的索引。
+ * 变更消息的查库和应用在同一把锁内完成，后处理的消息一定读到更新的数据；
+ * Redis发布订阅不保证送达，定时全量重新加载，丢失的消息最多影响一个周期
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex implements ApplicationRunner, MessageListener {
+
+    /**
+     * 网格大小（度），约1.1公里
+     */
+    private static final double CELL_DEGREES = 0.01;
+
+    /**
+     * 与Redis GEO计算距离时使用的地球半径保持一致
+     */
+    private static final double EARTH_RADIUS_IN_METERS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS_IN_METERS * Math.PI / 180;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * typeId -> (shopId -> [x, y])，变更时在此基础上重建索引
+     */
+    private final Map<Long, Map<Long, double[]>> points = new HashMap<>();
+
+    /**
+     * shopId -> typeId，商铺换类型时需要从旧类型中移除
+     */
+    private final Map<Long, Long> shopTypes = new HashMap<>();
+
+    /**
+     * typeId -> 不可变的索引快照，查询时无锁读取
+     */
+    private final Map<Long, TypeIndex> indexes = new ConcurrentHashMap<>();
+
+    private volatile boolean ready = false;
+
+    @PostConstruct
+    private void subscribe() {
+        //先订阅再加载，加载期间的变更会在加载完成后重新应用
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SHOP_CHANGE_TOPIC));
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        try {
+            load();
+        } catch (Exception e) {
+            log.error("商铺地理索引加载失败，附近商铺查询将使用Redis GEO", e);
+        }
+    }
+
+    public synchronized void load() {
+        long begin = System.currentTimeMillis();
+        List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>().select("id", "type_id", "x", "y"));
+        points.clear();
+        shopTypes.clear();
+        for (Shop shop : shops) {
+            put(shop);
+        }
+        indexes.clear();
+        for (Map.Entry<Long, Map<Long, double[]>> entry : points.entrySet()) {
+            indexes.put(entry.getKey(), TypeIndex.build(entry.getValue()));
+        }
+        ready = true;
+        log.info("商铺地理索引加载完成，商铺 {} 个，类型 {} 个，耗时 {} ms",
+                shops.size(), indexes.size(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 定时全量重新加载，弥补丢失的变更消息
+     */
+    @Scheduled(initialDelayString = "${hmdp.shop.index.reload-millis:600000}",
+            fixedDelayString = "${hmdp.shop.index.reload-millis:600000}")
+    public void reload() {
+        try {
+            load();
+        } catch (Exception e) {
+            log.error("商铺地理索引重新加载失败，继续使用旧索引", e);
+        }
+    }
+
+    /**
+     * 收到商铺变更消息，从数据库重新读取该商铺的位置
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            reloadShop(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            log.error("商铺地理索引更新失败", e);
+        }
+    }
+
+    /**
+     * 查库和更新在同一把锁内，多条消息或与全量加载交错时，后应用的总是更新的数据
+     */
+    private synchronized void reloadShop(Long shopId) {
+        Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>()
+                .select("id", "type_id", "x", "y")
+                .eq("id", shopId));
+        refresh(shopId, shop);
+    }
+
+    /**
+     * 更新单个商铺，shop为null表示商铺已删除
+     */
+    public synchronized void refresh(Long shopId, Shop shop) {
+        Set<Long> changedTypes = new HashSet<>(2);
+        Long oldTypeId = shopTypes.remove(shopId);
+        if (oldTypeId != null) {
+            points.get(oldTypeId).remove(shopId);
+            changedTypes.add(oldTypeId);
+        }
+        if (shop != null && put(shop)) {
+            changedTypes.add(shop.getTypeId());
+        }
+        for (Long typeId : changedTypes) {
+            indexes.put(typeId, TypeIndex.build(points.get(typeId)));
+        }
+    }
+
+    private boolean put(Shop shop) {
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return false;
+        }
+        points.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                .put(shop.getId(), new double[]{shop.getX(), shop.getY()});
+        shopTypes.put(shop.getId(), shop.getTypeId());
+        return true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 查询距离最近的商铺，按距离、id升序排列
+     *
+     * @param typeId       商铺类型
+     * @param x            经度
+     * @param y            纬度
+     * @param limit        返回数量
+     * @param maxDistance  最大距离（米）
+     * @param lastDistance 上一页最后一个商铺的距离，第一页传负数
+     * @param lastId       上一页最后一个商铺的id
+     * @return 排在游标之后的商铺id和距离
+     */
+    public List<GeoHit> nearest(Long typeId, double x, double y, int limit, double maxDistance,
+                                double lastDistance, long lastId) {
+        TypeIndex index = indexes.get(typeId);
+        if (index == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        return index.nearest(x, y, limit, maxDistance, new GeoHit(lastId, lastDistance));
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class GeoHit implements Comparable<GeoHit> {
+        private final long id;
+        private final double distance;
+
+        @Override
+        public int compareTo(GeoHit o) {
+            int c = Double.compare(distance, o.distance);
+            return c != 0 ? c : Long.compare(id, o.id);
+        }
+    }
+
+    /**
+     * 单个类型的网格索引，构建后不可变
+     */
+    private static class TypeIndex {
+        /**
+         * 有数据的格子，升序排列，用于二分查找
+         */
+        private long[] cellKeys;
+        /**
+         * 第i个格子的数据在下面数组中的范围为 [cellStarts[i], cellStarts[i + 1])
+         */
+        private int[] cellStarts;
+        private long[] ids;
+        private double[] xs;
+        private double[] ys;
+
+        static TypeIndex build(Map<Long, double[]> points) {
+            int n = points.size();
+            long[] keys = new long[n];
+            long[] ids = new long[n];
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            Integer[] order = new Integer[n];
+            int i = 0;
+            for (Map.Entry<Long, double[]> entry : points.entrySet()) {
+                ids[i] = entry.getKey();
+                xs[i] = entry.getValue()[0];
+                ys[i] = entry.getValue()[1];
+                keys[i] = cellKey(cellOf(xs[i]), cellOf(ys[i]));
+                order[i] = i;
+                i++;
+            }
+            //按格子排序，同一个格子的数据连续存放
+            Arrays.sort(order, Comparator.comparingLong(o -> keys[o]));
+            TypeIndex index = new TypeIndex();
+            index.ids = new long[n];
+            index.xs = new double[n];
+            index.ys = new double[n];
+            long[] cellKeys = new long[n];
+            int[] cellStarts = new int[n + 1];
+            int cells = 0;
+            for (int j = 0; j < n; j++) {
+                int o = order[j];
+                index.ids[j] = ids[o];
+                index.xs[j] = xs[o];
+                index.ys[j] = ys[o];
+                if (cells == 0 || cellKeys[cells - 1] != keys[o]) {
+                    cellKeys[cells] = keys[o];
+                    cellStarts[cells] = j;
+                    cells++;
+                }
+            }
+            cellStarts[cells] = n;
+            index.cellKeys = Arrays.copyOf(cellKeys, cells);
+            index.cellStarts = Arrays.copyOf(cellStarts, cells + 1);
+            return index;
+        }
+
+        List<GeoHit> nearest(double x, double y, int limit, double maxDistance, GeoHit after) {
+            int cx = cellOf(x);
+            int cy = cellOf(y);
+            //一个格子在经度方向上最短，以此估算每一圈之外的最小距离
+            double cellMeters = CELL_DEGREES * METERS_PER_DEGREE * Math.cos(Math.toRadians(Math.min(Math.abs(y) + CELL_DEGREES, 89)));
+            int maxRing = (int) Math.ceil(maxDistance / cellMeters) + 1;
+            //第r圈内的数据距离不超过 (r + 1) * √2 个格子的纬度边长，完全落在游标距离之内的圈直接跳过
+            double cellMetersMax = CELL_DEGREES * METERS_PER_DEGREE;
+            int startRing = Math.max(0, (int) Math.floor(after.getDistance() / (Math.sqrt(2) * cellMetersMax)) - 1);
+            List<GeoHit> hits = new ArrayList<>();
+            for (int ring = startRing; ring <= maxRing; ring++) {
+                for (int dx = -ring; dx <= ring; dx++) {
+                    //只遍历这一圈边上的格子
+                    int step = (dx == -ring || dx == ring) ? 1 : 2 * ring;
+                    for (int dy = -ring; dy <= ring; dy += Math.max(step, 1)) {
+                        scanCell(cellKey(cx + dx, cy + dy), x, y, maxDistance, after, hits);
+                    }
+                }
+                //这一圈之外的数据距离都不小于 ring * cellMeters，已经凑够并且都更近时停止
+                if (hits.size() >= limit) {
+                    Collections.sort(hits);
+                    if (hits.get(limit - 1).getDistance() <= ring * cellMeters) {
+                        break;
+                    }
+                }
+            }
+            Collections.sort(hits);
+            return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+        }
+
+        private void scanCell(long cellKey, double x, double y, double maxDistance, GeoHit after, List<GeoHit> hits) {
+            int cell = Arrays.binarySearch(cellKeys, cellKey);
+            if (cell < 0) {
+                return;
+            }
+            for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+                double distance = distance(x, y, xs[i], ys[i]);
+                if (distance > maxDistance) {
+                    continue;
+                }
+                GeoHit hit = new GeoHit(ids[i], distance);
+                //只保留排在游标之后的数据
+                if (hit.compareTo(after) > 0) {
+                    hits.add(hit);
+                }
+            }
+        }
+    }
+
+    private static int cellOf(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long cellKey(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xffffffffL);
+    }
+
+    /**
+     * 与Redis GEO相同的半正矢公式
+     */
+    static double distance(double x1, double y1, double x2, double y2) {
+        double lat1r = Math.toRadians(y1);
+        double lat2r = Math.toRadians(y2);
+        double u = Math.sin((lat2r - lat1r) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS_IN_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1r) * Math.cos(lat2r) * v * v));
+    }
+}
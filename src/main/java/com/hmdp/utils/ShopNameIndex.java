@@ -0,0 +1,326 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.extra.pinyin.PinyinUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.hmdp.utils.RedisConstants.SHOP_CHANGE_TOPIC;
+
+/**
+ * 商铺名称搜索的本地倒排索引，替代 LIKE '%name%' 的全表扫描。
+ * 名称和商圈按单字和二元组建立倒排表，中文名称额外按全拼和首字母前缀建立索引；
+ * 启动时从数据库加载，之后通过商铺变更消息增量更新。
+ * 全量加载和变更消息的查库、应用都在同一把锁内串行执行，旧的快照不会覆盖更新的变更；
+ * Redis发布订阅不保证送达，定时全量重新加载，丢失的消息最多影响一个周期
+ */
+@Slf4j
+@Component
+public class ShopNameIndex implements ApplicationRunner, MessageListener {
+
+    /**
+     * 拼音前缀最多索引的长度
+     */
+    private static final int MAX_PINYIN_PREFIX = 32;
+
+    /**
+     * 匹配等级，数值越小排名越靠前
+     */
+    private static final int RANK_NAME_PREFIX = 0;
+    private static final int RANK_PINYIN_PREFIX = 1;
+    private static final int RANK_NAME_CONTAINS = 2;
+    private static final int RANK_AREA_CONTAINS = 3;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final Map<Long, Doc> docs = new HashMap<>();
+
+    /**
+     * 单字、二元组 -> 商铺id
+     */
+    private final Map<String, Set<Long>> grams = new HashMap<>();
+
+    /**
+     * 全拼、首字母的前缀 -> 商铺id
+     */
+    private final Map<String, Set<Long>> pinyinPrefixes = new HashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile boolean ready = false;
+
+    @PostConstruct
+    private void subscribe() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SHOP_CHANGE_TOPIC));
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        try {
+            load();
+        } catch (Exception e) {
+            log.error("商铺名称索引加载失败，名称搜索将使用数据库模糊查询", e);
+        }
+    }
+
+    /**
+     * 查库和写入索引都在对象锁内，与变更消息串行；搜索只使用读写锁，加载期间不受影响
+     */
+    public synchronized void load() {
+        long begin = System.currentTimeMillis();
+        List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>().select("id", "name", "area", "comments"));
+        //拼音转换较慢，在锁外先构建好文档
+        List<Doc> loaded = new ArrayList<>(shops.size());
+        for (Shop shop : shops) {
+            loaded.add(toDoc(shop));
+        }
+        lock.writeLock().lock();
+        try {
+            docs.clear();
+            grams.clear();
+            pinyinPrefixes.clear();
+            for (Doc doc : loaded) {
+                add(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        ready = true;
+        log.info("商铺名称索引加载完成，商铺 {} 个，词条 {} 个，耗时 {} ms",
+                loaded.size(), grams.size() + pinyinPrefixes.size(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 定时全量重新加载，弥补丢失的变更消息
+     */
+    @Scheduled(initialDelayString = "${hmdp.shop.index.reload-millis:600000}",
+            fixedDelayString = "${hmdp.shop.index.reload-millis:600000}")
+    public void reload() {
+        try {
+            load();
+        } catch (Exception e) {
+            log.error("商铺名称索引重新加载失败，继续使用旧索引", e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            reloadShop(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            log.error("商铺名称索引更新失败", e);
+        }
+    }
+
+    /**
+     * 查库和更新在对象锁内，多条消息或与全量加载交错时，后应用的总是更新的数据
+     */
+    private synchronized void reloadShop(Long shopId) {
+        Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>()
+                .select("id", "name", "area", "comments")
+                .eq("id", shopId));
+        refresh(shopId, shop);
+    }
+
+    /**
+     * 更新单个商铺，shop为null表示商铺已删除
+     */
+    public void refresh(Long shopId, Shop shop) {
+        Doc doc = shop == null ? null : toDoc(shop);
+        lock.writeLock().lock();
+        try {
+            Doc old = docs.remove(shopId);
+            if (old != null) {
+                remove(old);
+            }
+            if (doc != null) {
+                add(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 搜索商铺，返回按匹配程度和评论数排序后的一页商铺id
+     *
+     * @param keyword 关键字，支持中文、全拼前缀和首字母前缀
+     * @param from    跳过的数量
+     * @param limit   返回数量
+     * @return 商铺id
+     */
+    public List<Long> search(String keyword, int from, int limit) {
+        String q = normalize(keyword);
+        if (q.isEmpty()) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            //1. 按匹配等级收集候选商铺
+            Map<Long, Integer> ranks = new HashMap<>();
+            for (Long id : candidates(q)) {
+                Doc doc = docs.get(id);
+                if (doc.name.startsWith(q)) {
+                    ranks.put(id, RANK_NAME_PREFIX);
+                } else if (doc.name.contains(q)) {
+                    ranks.put(id, RANK_NAME_CONTAINS);
+                } else if (doc.area.contains(q)) {
+                    ranks.put(id, RANK_AREA_CONTAINS);
+                }
+            }
+            if (isLetters(q)) {
+                for (Long id : pinyinPrefixes.getOrDefault(q, Collections.emptySet())) {
+                    ranks.merge(id, RANK_PINYIN_PREFIX, Math::min);
+                }
+            }
+            //2. 按匹配等级、评论数、id排序后分页
+            List<Long> ids = new ArrayList<>(ranks.keySet());
+            ids.sort(Comparator.<Long>comparingInt(ranks::get)
+                    .thenComparing(id -> docs.get(id).comments, Comparator.reverseOrder())
+                    .thenComparing(Comparator.naturalOrder()));
+            if (ids.size() <= from) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<>(ids.subList(from, Math.min(from + limit, ids.size())));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 关键字的所有二元组都出现的商铺，从最短的倒排表开始求交集
+     */
+    private Collection<Long> candidates(String q) {
+        List<String> qGrams = q.length() == 1 ? Collections.singletonList(q) : bigrams(q);
+        List<Set<Long>> postings = new ArrayList<>(qGrams.size());
+        for (String gram : qGrams) {
+            Set<Long> posting = grams.get(gram);
+            if (posting == null) {
+                return Collections.emptyList();
+            }
+            postings.add(posting);
+        }
+        postings.sort(Comparator.comparingInt(Set::size));
+        List<Long> result = new ArrayList<>(postings.get(0));
+        for (int i = 1; i < postings.size() && !result.isEmpty(); i++) {
+            Set<Long> posting = postings.get(i);
+            result.removeIf(id -> !posting.contains(id));
+        }
+        return result;
+    }
+
+    private void add(Doc doc) {
+        docs.put(doc.id, doc);
+        for (String gram : doc.grams) {
+            grams.computeIfAbsent(gram, k -> new HashSet<>()).add(doc.id);
+        }
+        for (String prefix : doc.pinyinPrefixes) {
+            pinyinPrefixes.computeIfAbsent(prefix, k -> new HashSet<>()).add(doc.id);
+        }
+    }
+
+    private void remove(Doc doc) {
+        removePosting(grams, doc.grams, doc.id);
+        removePosting(pinyinPrefixes, doc.pinyinPrefixes, doc.id);
+    }
+
+    private static void removePosting(Map<String, Set<Long>> index, Set<String> terms, Long id) {
+        for (String term : terms) {
+            Set<Long> posting = index.get(term);
+            if (posting != null && posting.remove(id) && posting.isEmpty()) {
+                index.remove(term);
+            }
+        }
+    }
+
+    private static Doc toDoc(Shop shop) {
+        String name = normalize(shop.getName());
+        String area = normalize(shop.getArea());
+        Set<String> terms = new HashSet<>();
+        for (String text : new String[]{name, area}) {
+            for (int i = 0; i < text.length(); i++) {
+                terms.add(text.substring(i, i + 1));
+            }
+            terms.addAll(bigrams(text));
+        }
+        Set<String> prefixes = new HashSet<>();
+        if (containsChinese(name)) {
+            addPrefixes(prefixes, normalize(PinyinUtil.getPinyin(name, "")));
+            addPrefixes(prefixes, normalize(PinyinUtil.getFirstLetter(name, "")));
+        }
+        int comments = shop.getComments() == null ? 0 : shop.getComments();
+        return new Doc(shop.getId(), name, area, comments, terms, prefixes);
+    }
+
+    private static void addPrefixes(Set<String> prefixes, String pinyin) {
+        for (int i = 1; i <= Math.min(pinyin.length(), MAX_PINYIN_PREFIX); i++) {
+            prefixes.add(pinyin.substring(0, i));
+        }
+    }
+
+    private static List<String> bigrams(String text) {
+        List<String> result = new ArrayList<>(Math.max(text.length() - 1, 0));
+        for (int i = 0; i + 2 <= text.length(); i++) {
+            result.add(text.substring(i, i + 2));
+        }
+        return result;
+    }
+
+    private static String normalize(String text) {
+        return StrUtil.isBlank(text) ? "" : StrUtil.cleanBlank(text).toLowerCase();
+    }
+
+    private static boolean containsChinese(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (PinyinUtil.isChinese(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLetters(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 'a' || c > 'z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @AllArgsConstructor
+    private static class Doc {
+        private final Long id;
+        private final String name;
+        private final String area;
+        private final int comments;
+        private final Set<String> grams;
+        private final Set<String> pinyinPrefixes;
+    }
+}
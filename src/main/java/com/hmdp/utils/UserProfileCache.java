@@ -0,0 +1,113 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.User;
+import com.hmdp.service.IUserService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 用户资料缓存，只保存展示用的昵称和头像。
+ * 一级缓存在本地，二级缓存在Redis，都未命中时一次查库；
+ * 用户修改资料后由发件箱删除Redis中的缓存，并通过消息通知各节点清除本地缓存
+ */
+@Slf4j
+@Component
+public class UserProfileCache implements MessageListener {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 本地缓存的有效期较短，即使漏掉了失效消息，资料也只会短暂地过期
+     */
+    private final Cache<Long, UserDTO> localCache = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(60, TimeUnit.SECONDS)
+            .build();
+
+    @PostConstruct
+    private void subscribe() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(USER_CHANGE_TOPIC));
+    }
+
+    public UserDTO get(Long id) {
+        return getAll(Collections.singletonList(id)).get(id);
+    }
+
+    /**
+     * 批量查询用户资料，不存在的用户不在结果中
+     */
+    public Map<Long, UserDTO> getAll(Collection<Long> ids) {
+        //1. 先查本地缓存
+        Map<Long, UserDTO> result = new HashMap<>(localCache.getAllPresent(ids));
+        List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            if (!result.containsKey(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        //2. 再批量查Redis，未命中的一次查库，只查询展示需要的字段
+        List<User> users = cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, missing, User.class,
+                userIds -> userService.query().select("id", "nick_name", "icon", "update_time").in("id", userIds).list(),
+                User::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (User user : users) {
+            UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+            localCache.put(user.getId(), userDTO);
+            result.put(user.getId(), userDTO);
+        }
+        return result;
+    }
+
+    /**
+     * 事务提交后调用，立即删除Redis缓存并通知各节点清除本地缓存，
+     * 避免其它节点在发件箱中继删除之前又把旧数据读回本地
+     */
+    public void publishEvict(Long id) {
+        cacheClient.delete(CACHE_USER_KEY + id);
+        localCache.invalidate(id);
+        stringRedisTemplate.convertAndSend(USER_CHANGE_TOPIC, id.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            localCache.invalidate(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            log.error("用户资料本地缓存清除失败", e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+-- 缓存key
+local key = KEYS[1]
+-- 新值的版本号
+local version = tonumber(ARGV[1])
+-- 带版本号头部的新值，数据可能是压缩过的二进制
+local value = ARGV[2]
+-- 过期时间（毫秒），0表示不过期
+local ttl = tonumber(ARGV[3])
+-- 缓存中已有值时，比较版本号，已有的版本更新则放弃写入；
+-- 版本号相同时数据相同，允许覆盖，逻辑过期的重建只会改变过期时间
+local old = redis.call('get', key)
+if (old) then
+    local oldVersion = tonumber(string.match(old, '^(%d+)|'))
+    if (oldVersion and oldVersion > version) then
+        return 0
+    end
+end
+if (ttl > 0) then
+    redis.call('set', key, value, 'PX', ttl)
+else
+    redis.call('set', key, value)
+end
+return 1
@@ -0,0 +1,16 @@
+-- 笔记id
+local blogId = ARGV[1]
+-- 发布时间，作为收件箱中的分数
+local score = ARGV[2]
+-- 收件箱保留的最大笔记数量
+local cap = tonumber(ARGV[3])
+-- KEYS为这一页粉丝的收件箱
+for i, key in ipairs(KEYS) do
+    -- 只推送到已存在的收件箱，不活跃用户的收件箱已过期删除，下次访问时再重建
+    if (redis.call('exists', key) == 1) then
+        redis.call('zadd', key, score, blogId)
+        -- 按分数从小到大删除超出上限的旧笔记
+        redis.call('zremrangebyrank', key, 0, -cap - 1)
+    end
+end
+return 0
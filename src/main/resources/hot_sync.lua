@@ -0,0 +1,14 @@
+-- 热门笔记排行榜
+local hotKey = KEYS[1]
+-- 点赞数hash，field为笔记id
+local countKey = KEYS[2]
+-- 排行榜还没有建立时不写入，避免生成只有部分笔记的排行榜被当作完整的排行榜
+if (redis.call('exists', hotKey) == 0) then
+    return 0
+end
+-- ARGV依次为笔记id和数据库中的点赞数，点赞数hash中有实时值时以实时值为准，和读取在同一个原子操作中，不会写入旧值
+for i = 1, #ARGV, 2 do
+    local count = redis.call('hget', countKey, ARGV[i]) or ARGV[i + 1]
+    redis.call('zadd', hotKey, count, ARGV[i])
+end
+return #ARGV / 2
@@ -0,0 +1,38 @@
+-- 笔记的点赞集合
+local likedKey = KEYS[1]
+-- 点赞数hash，field为笔记id
+local countKey = KEYS[2]
+-- 待写入数据库的点赞数增量hash，field为笔记id
+local deltaKey = KEYS[3]
+-- 热门笔记排行榜，分数为点赞数
+local hotKey = KEYS[4]
+-- 用户id
+local userId = ARGV[1]
+-- 点赞时间，作为集合中的分数
+local now = ARGV[2]
+-- 笔记id
+local blogId = ARGV[3]
+-- 数据库中的点赞数，点赞数hash中没有该笔记时由调用方传入
+local dbLiked = tonumber(ARGV[4])
+-- 点赞数第一次使用时，以数据库中的点赞数初始化，保证Redis中的点赞数和tb_blog.liked一致
+if (redis.call('hexists', countKey, blogId) == 0) then
+    redis.call('hset', countKey, blogId, dbLiked or 0)
+end
+-- 已点赞则取消，未点赞则点赞
+local liked = 1
+local delta = 1
+if (redis.call('zscore', likedKey, userId)) then
+    redis.call('zrem', likedKey, userId)
+    liked = 0
+    delta = -1
+else
+    redis.call('zadd', likedKey, now, userId)
+end
+local count = redis.call('hincrby', countKey, blogId, delta)
+redis.call('hincrby', deltaKey, blogId, delta)
+-- 以最新的点赞数更新排行榜，写入的是绝对值，不会因重复执行产生偏差；排行榜还没有建立时不写入
+if (redis.call('exists', hotKey) == 1) then
+    redis.call('zadd', hotKey, count, blogId)
+end
+-- 返回点赞后的状态和点赞数
+return {liked, count}
@@ -0,0 +1,12 @@
+-- 点赞增量的hash key
+local key = KEYS[1]
+-- 已写入数据库的笔记id
+local blogId = ARGV[1]
+-- 已写入数据库的增量
+local delta = tonumber(ARGV[2])
+-- 扣除已写入的部分，刷新期间新增的点赞留到下一次
+local rest = redis.call('hincrby', key, blogId, -delta)
+if (rest == 0) then
+    redis.call('hdel', key, blogId)
+end
+return rest
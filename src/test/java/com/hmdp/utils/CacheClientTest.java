@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * cache_set.lua在luaj中执行，redis.call由内存中的map模拟
+ */
+class CacheClientTest {
+
+    private static final String KEY = "cache:shop:1";
+
+    private final Map<String, byte[]> store = new HashMap<>();
+
+    private CacheClient cacheClient;
+
+    @BeforeEach
+    void setUp() {
+        cacheClient = new CacheClient(new LuaStringRedisTemplate(store));
+        //不压缩，方便直接比较写入的内容
+        ReflectionTestUtils.setField(cacheClient, "compressThreshold", Integer.MAX_VALUE);
+    }
+
+    @Test
+    void logicalExpireRewriteWithSameVersionSucceeds() {
+        //已经逻辑过期的旧数据，版本号与数据库中的相同
+        String expired = "5|j{\"expireTime\":\"2000-01-01T00:00:00\",\"data\":{\"id\":1,\"version\":5}}";
+        store.put(KEY, expired.getBytes(StandardCharsets.UTF_8));
+
+        cacheClient.setWithLogicExpire(KEY, shop(5L), 30L, TimeUnit.MINUTES);
+
+        String stored = new String(store.get(KEY), StandardCharsets.UTF_8);
+        assertNotEquals(expired, stored);
+        assertTrue(stored.startsWith("5|"));
+        assertTrue(!stored.contains("2000-01-01"));
+    }
+
+    @Test
+    void olderVersionIsRejected() {
+        String newer = "6|j{\"id\":1,\"version\":6}";
+        store.put(KEY, newer.getBytes(StandardCharsets.UTF_8));
+
+        cacheClient.setWithLogicExpire(KEY, shop(5L), 30L, TimeUnit.MINUTES);
+        cacheClient.set(KEY, shop(5L), 30L, TimeUnit.MINUTES);
+
+        assertEquals(newer, new String(store.get(KEY), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void newerVersionOverwrites() {
+        store.put(KEY, "5|j{\"id\":1,\"version\":5}".getBytes(StandardCharsets.UTF_8));
+
+        cacheClient.set(KEY, shop(6L), 30L, TimeUnit.MINUTES);
+
+        assertTrue(new String(store.get(KEY), StandardCharsets.UTF_8).startsWith("6|"));
+    }
+
+    private static Shop shop(Long version) {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setVersion(version);
+        return shop;
+    }
+
+    /**
+     * 只实现脚本执行，脚本中的get和set读写内存中的map
+     */
+    private static class LuaStringRedisTemplate extends StringRedisTemplate {
+        private final Map<String, byte[]> store;
+
+        LuaStringRedisTemplate(Map<String, byte[]> store) {
+            this.store = store;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(RedisScript<T> script, RedisSerializer<?> argsSerializer, RedisSerializer<T> resultSerializer,
+                             List<String> keys, Object... args) {
+            Globals globals = JsePlatform.standardGlobals();
+            LuaTable redis = new LuaTable();
+            redis.set("call", new VarArgFunction() {
+                @Override
+                public Varargs invoke(Varargs a) {
+                    String command = a.checkjstring(1).toLowerCase();
+                    String key = a.checkjstring(2);
+                    if ("get".equals(command)) {
+                        byte[] value = store.get(key);
+                        return value == null ? LuaValue.FALSE : LuaString.valueOf(value);
+                    }
+                    if ("set".equals(command)) {
+                        LuaString value = a.checkstring(3);
+                        byte[] bytes = new byte[value.rawlen()];
+                        value.copyInto(0, bytes, 0, bytes.length);
+                        store.put(key, bytes);
+                        return LuaValue.valueOf("OK");
+                    }
+                    throw new UnsupportedOperationException(command);
+                }
+            });
+            globals.set("redis", redis);
+            LuaTable keyTable = new LuaTable();
+            for (int i = 0; i < keys.size(); i++) {
+                keyTable.set(i + 1, LuaValue.valueOf(keys.get(i)));
+            }
+            globals.set("KEYS", keyTable);
+            LuaTable argTable = new LuaTable();
+            for (int i = 0; i < args.length; i++) {
+                argTable.set(i + 1, LuaString.valueOf((byte[]) args[i]));
+            }
+            globals.set("ARGV", argTable);
+            LuaValue result = globals.load(script.getScriptAsString(), "script").call();
+            return (T) Long.valueOf(result.tolong());
+        }
+    }
+}
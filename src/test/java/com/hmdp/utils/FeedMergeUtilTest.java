@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.ScrollResult;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FeedMergeUtilTest {
+
+    private static final int PAGE_SIZE = 2;
+
+    @Test
+    void mergeOrdersByScoreThenIdAndDedups() {
+        //收件箱和发件箱中有时间戳相同的笔记，笔记3同时在两个数据源中
+        List<Set<ZSetOperations.TypedTuple<String>>> sources = Arrays.asList(
+                source(tuple("5", 2000), tuple("3", 1000), tuple("1", 1000)),
+                source(tuple("4", 1000), tuple("3", 1000), tuple("2", 500)));
+
+        ScrollResult r = FeedMergeUtil.merge(sources, Long.MAX_VALUE, 0, 4);
+
+        assertEquals(Arrays.asList(5L, 4L, 3L, 1L), r.getList());
+        assertEquals(1000L, r.getMinTime());
+        assertEquals(3, r.getOffset());
+    }
+
+    @Test
+    void offsetAccumulatesWhenWholePageHasTheSameTimestamp() {
+        List<Set<ZSetOperations.TypedTuple<String>>> sources = Arrays.asList(
+                source(tuple("6", 1000), tuple("4", 1000), tuple("2", 1000)),
+                source(tuple("5", 1000), tuple("3", 1000), tuple("1", 1000)));
+
+        //上一页已经取了时间戳为1000的2条
+        ScrollResult r = FeedMergeUtil.merge(sources, 1000, 2, PAGE_SIZE);
+
+        assertEquals(Arrays.asList(4L, 3L), r.getList());
+        assertEquals(1000L, r.getMinTime());
+        assertEquals(4, r.getOffset());
+    }
+
+    @Test
+    void scrollingVisitsEveryBlogOnceAcrossInboxAndOutboxes() {
+        //收件箱、两个大V的发件箱，大量相同时间戳，作者成为大V前后的笔记在收件箱和发件箱中重复
+        List<List<ZSetOperations.TypedTuple<String>>> all = Arrays.asList(
+                Arrays.asList(tuple("1", 100), tuple("2", 200), tuple("3", 200), tuple("7", 200),
+                        tuple("10", 300), tuple("12", 300)),
+                Arrays.asList(tuple("4", 200), tuple("5", 200), tuple("7", 200), tuple("11", 300)),
+                Arrays.asList(tuple("6", 200), tuple("8", 250), tuple("9", 300), tuple("12", 300)));
+        List<Long> expected = all.stream()
+                .flatMap(List::stream)
+                .sorted(ORDER)
+                .map(t -> Long.valueOf(t.getValue()))
+                .distinct()
+                .collect(Collectors.toList());
+
+        List<Long> visited = new ArrayList<>();
+        long max = Long.MAX_VALUE;
+        int offset = 0;
+        for (int page = 0; page < 20; page++) {
+            //模拟ZREVRANGEBYSCORE key 0 max LIMIT 0 offset+pageSize
+            int count = offset + PAGE_SIZE;
+            long m = max;
+            List<Set<ZSetOperations.TypedTuple<String>>> sources = all.stream()
+                    .map(list -> list.stream()
+                            .filter(t -> t.getScore() <= m)
+                            .sorted(ORDER)
+                            .limit(count)
+                            .collect(Collectors.toCollection(LinkedHashSet::new)))
+                    .collect(Collectors.toList());
+            ScrollResult r = FeedMergeUtil.merge(sources, max, offset, PAGE_SIZE);
+            if (r.getList().isEmpty()) {
+                break;
+            }
+            r.getList().forEach(id -> visited.add((Long) id));
+            max = r.getMinTime();
+            offset = r.getOffset();
+        }
+
+        assertEquals(expected, visited);
+        assertTrue(visited.size() == new LinkedHashSet<>(visited).size());
+    }
+
+    @Test
+    void emptySourcesReturnEmptyPage() {
+        ScrollResult r = FeedMergeUtil.merge(Collections.singletonList(Collections.emptySet()), 1000, 0, PAGE_SIZE);
+
+        assertTrue(r.getList().isEmpty());
+    }
+
+    /**
+     * ZREVRANGEBYSCORE的顺序：分数倒序，分数相同时按成员倒序
+     */
+    private static final Comparator<ZSetOperations.TypedTuple<String>> ORDER =
+            Comparator.comparing(ZSetOperations.TypedTuple<String>::getScore).reversed()
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    private static ZSetOperations.TypedTuple<String> tuple(String id, double score) {
+        return new DefaultTypedTuple<>(id, score);
+    }
+
+    @SafeVarargs
+    private static Set<ZSetOperations.TypedTuple<String>> source(ZSetOperations.TypedTuple<String>... tuples) {
+        return new LinkedHashSet<>(Arrays.asList(tuples));
+    }
+}
@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShopGeoIndexTest {
+
+    private static final long TYPE = 1L;
+    private static final double X = 120.15;
+    private static final double Y = 30.25;
+    private static final double MAX_DISTANCE = 5000;
+
+    private ShopGeoIndex index;
+    private List<Shop> shops;
+
+    @BeforeEach
+    void setUp() {
+        index = new ShopGeoIndex();
+        shops = new ArrayList<>();
+        Random random = new Random(42);
+        long id = 1;
+        for (int i = 0; i < 400; i++) {
+            //约±8公里范围内随机分布，一部分超出最大距离
+            shops.add(shop(id++, TYPE, X + (random.nextDouble() - 0.5) * 0.16, Y + (random.nextDouble() - 0.5) * 0.16));
+        }
+        //同一位置的多家商铺，距离相同时按id排序
+        for (int i = 0; i < 7; i++) {
+            shops.add(shop(id++, TYPE, X + 0.003, Y + 0.004));
+        }
+        //其它类型的商铺不应被查到
+        shops.add(shop(id, 2L, X, Y));
+        shops.forEach(shop -> index.refresh(shop.getId(), shop));
+    }
+
+    @Test
+    void nearestMatchesBruteForce() {
+        List<ShopGeoIndex.GeoHit> hits = index.nearest(TYPE, X, Y, 10, MAX_DISTANCE, -1, 0);
+
+        assertEquals(bruteForce().subList(0, 10), ids(hits));
+    }
+
+    @Test
+    void cursorPagingVisitsEveryShopOnceInOrder() {
+        List<Long> visited = new ArrayList<>();
+        double lastDistance = -1;
+        long lastId = 0;
+        while (true) {
+            List<ShopGeoIndex.GeoHit> page = index.nearest(TYPE, X, Y, 3, MAX_DISTANCE, lastDistance, lastId);
+            if (page.isEmpty()) {
+                break;
+            }
+            visited.addAll(ids(page));
+            ShopGeoIndex.GeoHit last = page.get(page.size() - 1);
+            lastDistance = last.getDistance();
+            lastId = last.getId();
+        }
+
+        List<Long> expected = bruteForce();
+        assertTrue(expected.size() > 100);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    void refreshMovesAndRemovesShops() {
+        Shop moved = shops.get(0);
+        //换到类型2，并移动到查询点上
+        index.refresh(moved.getId(), shop(moved.getId(), 2L, X, Y));
+        List<Long> type2 = ids(index.nearest(2L, X, Y, 10, MAX_DISTANCE, -1, 0));
+        assertTrue(type2.contains(moved.getId()));
+        assertTrue(!ids(index.nearest(TYPE, X, Y, 1000, MAX_DISTANCE, -1, 0)).contains(moved.getId()));
+
+        //删除
+        index.refresh(moved.getId(), null);
+        assertTrue(!ids(index.nearest(2L, X, Y, 10, MAX_DISTANCE, -1, 0)).contains(moved.getId()));
+    }
+
+    private List<Long> bruteForce() {
+        return shops.stream()
+                .filter(shop -> shop.getTypeId() == TYPE)
+                .map(shop -> new ShopGeoIndex.GeoHit(shop.getId(), ShopGeoIndex.distance(X, Y, shop.getX(), shop.getY())))
+                .filter(hit -> hit.getDistance() <= MAX_DISTANCE)
+                .sorted(Comparator.naturalOrder())
+                .map(ShopGeoIndex.GeoHit::getId)
+                .collect(Collectors.toList());
+    }
+
+    private static List<Long> ids(List<ShopGeoIndex.GeoHit> hits) {
+        return hits.stream().map(ShopGeoIndex.GeoHit::getId).collect(Collectors.toList());
+    }
+
+    private static Shop shop(long id, long typeId, double x, double y) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setTypeId(typeId);
+        shop.setX(x);
+        shop.setY(y);
+        return shop;
+    }
+}
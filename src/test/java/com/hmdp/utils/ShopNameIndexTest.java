@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ShopNameIndexTest {
+
+    private ShopNameIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new ShopNameIndex();
+        add(1L, "火锅大王", "大关", 10);
+        add(2L, "小龙坎火锅", "西湖", 50);
+        add(3L, "海底捞火锅", "火车东站", 100);
+        add(4L, "茶餐厅", "火锅街", 5);
+        add(5L, "火锅之家", "滨江", 30);
+        //含有关键字的单字但没有二元组
+        add(6L, "火车头烧烤", "拱墅", 0);
+        add(7L, "锅火", "上城", 0);
+    }
+
+    @Test
+    void ranksNamePrefixThenContainsThenAreaByComments() {
+        assertEquals(Arrays.asList(5L, 1L, 3L, 2L, 4L), index.search("火锅", 0, 10));
+    }
+
+    @Test
+    void requiresEveryBigramOfTheKeyword() {
+        assertEquals(Collections.singletonList(3L), index.search("海底捞火锅", 0, 10));
+        assertEquals(Collections.emptyList(), index.search("火锅烧烤", 0, 10));
+        assertEquals(Collections.singletonList(6L), index.search("车头", 0, 10));
+    }
+
+    @Test
+    void singleCharacterMatchesUnigrams() {
+        assertEquals(Arrays.asList(6L, 3L), index.search("车", 0, 10));
+        assertEquals(Collections.singletonList(4L), index.search("茶", 0, 10));
+    }
+
+    @Test
+    void matchesPinyinAndInitialsPrefixes() {
+        assertEquals(Arrays.asList(5L, 1L), index.search("hg", 0, 10));
+        assertEquals(Arrays.asList(5L, 1L), index.search("huoguo", 0, 10));
+        assertEquals(Collections.singletonList(3L), index.search("HDL", 0, 10));
+        assertEquals(Collections.emptyList(), index.search("hgx", 0, 10));
+    }
+
+    @Test
+    void pagesWithFromAndLimit() {
+        assertEquals(Arrays.asList(3L, 2L), index.search("火锅", 2, 2));
+        assertEquals(Collections.singletonList(4L), index.search("火锅", 4, 2));
+        assertEquals(Collections.emptyList(), index.search("火锅", 5, 2));
+    }
+
+    @Test
+    void refreshRenamesAndRemoves() {
+        add(3L, "海底捞", "火车东站", 100);
+        index.refresh(5L, null);
+
+        assertEquals(Arrays.asList(1L, 2L, 4L), index.search("火锅", 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("hg", 0, 10));
+    }
+
+    private void add(Long id, String name, String area, int comments) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName(name);
+        shop.setArea(area);
+        shop.setComments(comments);
+        index.refresh(id, shop);
+    }
+}